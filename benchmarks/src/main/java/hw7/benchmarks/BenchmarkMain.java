@@ -0,0 +1,48 @@
+package hw7.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks with JSON results by default - written to jmh-&lt;git commit&gt;.json (jmh-result.json
+ * outside of a git checkout) so runs of different commits can be compared. Any JMH option can be given, e.g.
+ * <pre>
+ *   java -jar target/benchmarks.jar KMeansBenchmark -p k=10,50 -rff my-run.json
+ * </pre>
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        if (!options.contains("-rff")) {
+            String commit = gitCommit();
+            options.add("-rff");
+            options.add(commit == null ? "jmh-result.json" : "jmh-" + commit + ".json");
+        }
+        Main.main(options.toArray(new String[options.size()]));
+    }
+
+    /**
+     * @return the short hash of the checked out commit, or null if it is not available
+     */
+    private static String gitCommit() {
+        try {
+            Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(git.getInputStream(), "UTF-8"));
+            String commit = reader.readLine();
+            reader.close();
+            return (git.waitFor() == 0 && commit != null) ? commit.trim() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package hw7.benchmarks;
+
+import weka.attributeSelection.ASEvaluation;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Access to the homework classes. They live in the default package, which can not be imported from a named package
+ * (and JMH needs one), so they are reached through method handles - the handles are static final, so the JIT inlines
+ * the calls like direct ones.
+ * <p>
+ * The data files (baboon_face.jpg, sunset.jpg, libras.txt) are read from the directory given by the hw7.data system
+ * property, by default the project directory (the parent of the benchmarks module).
+ */
+final class Hw7 {
+
+    private static final MethodHandle NEW_KMEANS;
+    private static final MethodHandle SET_K;
+    private static final MethodHandle BUILD_FROM_PIXELS;
+    private static final MethodHandle BUILD_FROM_INSTANCES;
+    private static final MethodHandle FIND_CLOSEST_CENTROID;
+    private static final MethodHandle CALC_SQUARED_DISTANCE;
+    private static final MethodHandle CALC_DISTANCE;
+    private static final MethodHandle GET_CENTROID_INSTANCES;
+    private static final MethodHandle FROM_IMAGE;
+    private static final MethodHandle TO_INSTANCES;
+    private static final MethodHandle CONVERT_IMG_TO_INSTANCES;
+    private static final MethodHandle LOAD_DATA;
+    private static final MethodHandle NEW_PCA;
+    private static final MethodHandle SET_NUM_PRIN_COMPONENTS;
+    private static final MethodHandle SET_TRANSFORM_BACK;
+    private static final MethodHandle SET_SOLVER;
+    private static final MethodHandle SOLVER_VALUE_OF;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> kMeans = Class.forName("KMeans");
+            Class<?> pixelBuffer = Class.forName("PixelBuffer");
+            Class<?> hw7Main = Class.forName("Hw7Main");
+            Class<?> pca = Class.forName("PrincipalComponents");
+
+            NEW_KMEANS = lookup.findConstructor(kMeans, MethodType.methodType(void.class));
+            SET_K = lookup.findVirtual(kMeans, "setK", MethodType.methodType(void.class, int.class));
+            BUILD_FROM_PIXELS = lookup.findVirtual(kMeans, "buildClusterModel",
+                    MethodType.methodType(void.class, pixelBuffer));
+            BUILD_FROM_INSTANCES = lookup.findVirtual(kMeans, "buildClusterModel",
+                    MethodType.methodType(void.class, Instances.class));
+            FIND_CLOSEST_CENTROID = lookup.findVirtual(kMeans, "findClosestCentroid",
+                    MethodType.methodType(int.class, Instance.class));
+            CALC_SQUARED_DISTANCE = lookup.findVirtual(kMeans, "calcSquaredDistance",
+                    MethodType.methodType(double.class, Instance.class, Instance.class));
+            CALC_DISTANCE = lookup.findVirtual(kMeans, "calcDistance",
+                    MethodType.methodType(double.class, Instance.class, Instance.class));
+            GET_CENTROID_INSTANCES = lookup.findVirtual(kMeans, "getCentroidInstances",
+                    MethodType.methodType(Instances.class));
+            FROM_IMAGE = lookup.findStatic(pixelBuffer, "fromImage",
+                    MethodType.methodType(pixelBuffer, BufferedImage.class));
+            TO_INSTANCES = lookup.findVirtual(pixelBuffer, "toInstances", MethodType.methodType(Instances.class));
+            CONVERT_IMG_TO_INSTANCES = lookup.findStatic(hw7Main, "convertImgToInstances",
+                    MethodType.methodType(Instances.class, BufferedImage.class));
+            LOAD_DATA = lookup.findStatic(hw7Main, "loadData", MethodType.methodType(Instances.class, String.class));
+            NEW_PCA = lookup.findConstructor(pca, MethodType.methodType(void.class));
+            SET_NUM_PRIN_COMPONENTS = lookup.findVirtual(pca, "setNumPrinComponents",
+                    MethodType.methodType(void.class, int.class));
+            SET_TRANSFORM_BACK = lookup.findVirtual(pca, "setTransformBackToOriginal",
+                    MethodType.methodType(void.class, boolean.class));
+            Class<?> solver = Class.forName("PrincipalComponents$Solver");
+            SET_SOLVER = lookup.findVirtual(pca, "setSolver", MethodType.methodType(void.class, solver));
+            SOLVER_VALUE_OF = lookup.findStatic(solver, "valueOf", MethodType.methodType(solver, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Hw7() {
+    }
+
+    static File dataFile(String name) {
+        return new File(System.getProperty("hw7.data", ".."), name);
+    }
+
+    static BufferedImage readImage(String name) throws IOException {
+        return ImageIO.read(dataFile(name));
+    }
+
+    /**
+     * a new KMeans with the given K
+     */
+    static Object kMeans(int k) throws Throwable {
+        Object model = NEW_KMEANS.invoke();
+        SET_K.invoke(model, k);
+        return model;
+    }
+
+    static void buildClusterModel(Object kMeans, Object pixelBuffer) throws Throwable {
+        BUILD_FROM_PIXELS.invoke(kMeans, pixelBuffer);
+    }
+
+    static void buildClusterModel(Object kMeans, Instances instances) throws Throwable {
+        BUILD_FROM_INSTANCES.invoke(kMeans, instances);
+    }
+
+    static int findClosestCentroid(Object kMeans, Instance instance) throws Throwable {
+        return (int) FIND_CLOSEST_CENTROID.invoke(kMeans, instance);
+    }
+
+    static double calcSquaredDistance(Object kMeans, Instance a, Instance b) throws Throwable {
+        return (double) CALC_SQUARED_DISTANCE.invoke(kMeans, a, b);
+    }
+
+    static double calcDistance(Object kMeans, Instance a, Instance b) throws Throwable {
+        return (double) CALC_DISTANCE.invoke(kMeans, a, b);
+    }
+
+    static Instances centroidInstances(Object kMeans) throws Throwable {
+        return (Instances) GET_CENTROID_INSTANCES.invoke(kMeans);
+    }
+
+    static Object pixelBuffer(BufferedImage image) throws Throwable {
+        return FROM_IMAGE.invoke(image);
+    }
+
+    static Instances toInstances(Object pixelBuffer) throws Throwable {
+        return (Instances) TO_INSTANCES.invoke(pixelBuffer);
+    }
+
+    static Instances convertImgToInstances(BufferedImage image) throws Throwable {
+        return (Instances) CONVERT_IMG_TO_INSTANCES.invoke(image);
+    }
+
+    static Instances loadData(String name) throws Throwable {
+        return (Instances) LOAD_DATA.invoke(dataFile(name).getPath());
+    }
+
+    /**
+     * a new PrincipalComponents keeping the given number of components and transforming back to the original space
+     * (the Hw7Main setup)
+     */
+    static ASEvaluation principalComponents(int numComponents) throws Throwable {
+        return principalComponents(numComponents, "FULL");
+    }
+
+    /**
+     * as principalComponents(numComponents), with the given eigen solver (a PrincipalComponents.Solver name)
+     */
+    static ASEvaluation principalComponents(int numComponents, String solver) throws Throwable {
+        ASEvaluation pca = (ASEvaluation) NEW_PCA.invoke();
+        SET_NUM_PRIN_COMPONENTS.invoke(pca, numComponents);
+        SET_TRANSFORM_BACK.invoke(pca, true);
+        SET_SOLVER.invoke(pca, SOLVER_VALUE_OF.invoke(solver));
+        return pca;
+    }
+}
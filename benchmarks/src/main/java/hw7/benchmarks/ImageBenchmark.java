@@ -0,0 +1,50 @@
+package hw7.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.Instances;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Image to pixel conversion - Hw7Main.convertImgToInstances (one weka instance per pixel) and the PixelBuffer it is
+ * built on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+    @Param({"baboon_face.jpg", "sunset.jpg"})
+    public String image;
+
+    private BufferedImage bufferedImage;
+
+    @Setup
+    public void setup() throws Exception {
+        bufferedImage = Hw7.readImage(image);
+    }
+
+    @Benchmark
+    public Instances convertImgToInstances() throws Throwable {
+        return Hw7.convertImgToInstances(bufferedImage);
+    }
+
+    @Benchmark
+    public Object pixelBuffer() throws Throwable {
+        return Hw7.pixelBuffer(bufferedImage);
+    }
+}
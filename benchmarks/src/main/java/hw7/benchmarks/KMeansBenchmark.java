@@ -0,0 +1,143 @@
+package hw7.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KMeans.buildClusterModel (a full model per call) and KMeans.findClosestCentroid (one pixel per call) over the pixels
+ * of an image, for every K.
+ * <p>
+ * The distance functions are measured per call against the original ones (Math.pow per attribute, an int accumulator
+ * and a square root): calcSquaredDistance (used for comparisons) and calcDistance (used for reporting) against
+ * legacyDistance, and findClosestCentroid against legacyClosestCentroid, which makes K legacy distance calls per pixel.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class KMeansBenchmark {
+
+    @Param({"baboon_face.jpg", "sunset.jpg"})
+    public String image;
+
+    @Param({"2", "10", "50", "256"})
+    public int k;
+
+    private Object pixels;
+    private Instances instances;
+    private Object model;
+    private Instances centroids;
+    private int next;
+
+    @Setup
+    public void setup() throws Throwable {
+        pixels = Hw7.pixelBuffer(Hw7.readImage(image));
+        instances = Hw7.toInstances(pixels);
+        model = Hw7.kMeans(k);
+        Hw7.buildClusterModel(model, pixels);
+        centroids = Hw7.centroidInstances(model);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public Object buildClusterModel() throws Throwable {
+        Object kMeans = Hw7.kMeans(k);
+        Hw7.buildClusterModel(kMeans, pixels);
+        return kMeans;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public int findClosestCentroid() throws Throwable {
+        next = (next + 1) % instances.numInstances();
+        return Hw7.findClosestCentroid(model, instances.instance(next));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public int legacyClosestCentroid() {
+        next = (next + 1) % instances.numInstances();
+        return legacyClosestCentroid(instances.instance(next), centroids);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public double calcSquaredDistance() throws Throwable {
+        next = (next + 1) % instances.numInstances();
+        return Hw7.calcSquaredDistance(model, instances.instance(next), centroids.instance(next % k));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public double calcDistance() throws Throwable {
+        next = (next + 1) % instances.numInstances();
+        return Hw7.calcDistance(model, instances.instance(next), centroids.instance(next % k));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public double legacyDistance() {
+        next = (next + 1) % instances.numInstances();
+        return legacyDistance(instances.instance(next), centroids.instance(next % k));
+    }
+
+    /**
+     * the original KMeans.calcSquaredDistance
+     */
+    private static double legacyDistance(Instance a, Instance b) {
+        int dist = 0;
+
+        for (int i = 0; i < a.numAttributes(); i++) {
+            dist += Math.pow((a.value(i) - b.value(i)), 2);
+        }
+
+        return Math.sqrt(dist);
+    }
+
+    /**
+     * the original KMeans.findClosestCentroid
+     */
+    private static int legacyClosestCentroid(Instance instance, Instances centroids) {
+        double minDist = Double.MAX_VALUE;
+        int closestIndex = 0;
+
+        for (int i = 0; i < centroids.numInstances(); i++) {
+            double curDist = legacyDistance(instance, centroids.instance(i));
+            if (curDist < minDist) {
+                minDist = curDist;
+                closestIndex = i;
+            }
+        }
+
+        return closestIndex;
+    }
+}
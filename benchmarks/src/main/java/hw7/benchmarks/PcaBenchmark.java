@@ -0,0 +1,61 @@
+package hw7.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.attributeSelection.ASEvaluation;
+import weka.attributeSelection.AttributeTransformer;
+import weka.core.Instances;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PrincipalComponents over the Libras dataset, set up like Hw7Main (transform back to the original space) - the fit
+ * (buildEvaluator) and the transform of the whole dataset (transformedData), for a number of principal components and
+ * an eigen solver. The buildEvaluator scores compare the cost of the truncated solvers with the full decomposition -
+ * their accuracy is checked by PrincipalComponentsSolverTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcaBenchmark {
+
+    @Param({"13", "30", "60", "89"})
+    public int numComponents;
+
+    @Param({"FULL", "SUBSPACE", "RANDOMIZED_SVD"})
+    public String solver;
+
+    private Instances libras;
+    private ASEvaluation fitted;
+
+    @Setup
+    public void setup() throws Throwable {
+        libras = Hw7.loadData("libras.txt");
+        fitted = Hw7.principalComponents(numComponents, solver);
+        fitted.buildEvaluator(libras);
+    }
+
+    @Benchmark
+    public ASEvaluation buildEvaluator() throws Throwable {
+        ASEvaluation pca = Hw7.principalComponents(numComponents, solver);
+        pca.buildEvaluator(libras);
+        return pca;
+    }
+
+    @Benchmark
+    public Instances transformedData() throws Exception {
+        return ((AttributeTransformer) fitted).transformedData(libras);
+    }
+}
@@ -0,0 +1,150 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The truncated eigen solvers of PrincipalComponents (SUBSPACE, RANDOMIZED_SVD) against the full decomposition, on the
+ * Libras dataset, for every component a truncated solver computes.
+ * <p>
+ * The solvers iterate until the residual |Av - lambda v| of every wanted eigenpair is at most RESIDUAL_TOLERANCE times
+ * the largest eigenvalue, which bounds
+ * <ul>
+ * <li>the error of an eigenvalue by the same amount</li>
+ * <li>the sine of the angle between an eigenvector and the full decomposition's one by the residual over the gap
+ * between its eigenvalue and the rest of the spectrum (Davis-Kahan) - an eigenvalue without a gap (the null space past
+ * the rank of the data) has no unique eigenvector, and the bound allows any</li>
+ * </ul>
+ * The bounds only hold if the solver converged, which it reports (getSolverConverged) rather than stopping silently at
+ * its iteration cap. The reconstruction errors of the data must match within RECONSTRUCTION_TOLERANCE of the error with
+ * no component.
+ * <p>
+ * Libras is read from the directory given by the hw7.data system property, by default the parent of the working
+ * directory (the project directory when run from the benchmarks module).
+ */
+public class PrincipalComponentsSolverTest {
+
+    //the residual tolerance of the truncated solvers (PrincipalComponents.SUBSPACE_TOLERANCE)
+    private static final double RESIDUAL_TOLERANCE = 1e-10;
+    //slack on the bounds above, for the rounding of both decompositions
+    private static final double SLACK = 2;
+    //measured differences are below 1e-10, relative to the error with no component
+    private static final double RECONSTRUCTION_TOLERANCE = 1e-8;
+
+    //both sides of the rank of Libras (about 45)
+    private static final int[] NUM_PRIN_COMPONENTS = {13, 30, 60};
+
+    private static Instances libras;
+
+    @BeforeClass
+    public static void loadData() throws Exception {
+        libras = Hw7Main.loadData(new File(System.getProperty("hw7.data", ".."), "libras.txt").getPath());
+    }
+
+    @Test
+    public void subspaceMatchesFull() throws Exception {
+        for (int numPrinComponents : NUM_PRIN_COMPONENTS) {
+            checkAgainstFull(PrincipalComponents.Solver.SUBSPACE, numPrinComponents);
+        }
+    }
+
+    @Test
+    public void randomizedSvdMatchesFull() throws Exception {
+        for (int numPrinComponents : NUM_PRIN_COMPONENTS) {
+            checkAgainstFull(PrincipalComponents.Solver.RANDOMIZED_SVD, numPrinComponents);
+        }
+    }
+
+    private static void checkAgainstFull(PrincipalComponents.Solver solver, int numPrinComponents) throws Exception {
+        PrincipalComponents full = fit(PrincipalComponents.Solver.FULL, numPrinComponents);
+        PrincipalComponents truncated = fit(solver, numPrinComponents);
+        String name = solver + ", " + numPrinComponents + " components";
+        assertTrue(name + ": not converged in " + truncated.getSolverIterations() + " iterations",
+                truncated.getSolverConverged());
+
+        double[] fullValues = sortedValues(full);
+        double[][] fullVectors = sortedVectors(full);
+        double[] values = sortedValues(truncated);
+        double[][] vectors = sortedVectors(truncated);
+        //as many as convertInstance keeps (see PrincipalComponents.numComponents)
+        assertEquals(name + ": computed components", numPrinComponents + 2, values.length);
+
+        double residual = RESIDUAL_TOLERANCE * fullValues[0];
+        for (int c = 0; c < values.length; c++) {
+            assertEquals(name + ": eigenvalue " + c, fullValues[c], values[c], SLACK * residual);
+
+            double gap = Double.MAX_VALUE;
+            for (int other = 0; other < fullValues.length; other++) {
+                if (other != c) {
+                    gap = Math.min(gap, Math.abs(fullValues[other] - fullValues[c]));
+                }
+            }
+            //the distance between the (sign aligned) unit vectors, 2 sin(angle / 2) - at least sin(angle), and unlike
+            //sqrt(1 - cos^2) accurate for tiny angles
+            double cos = 0;
+            for (int j = 0; j < vectors[c].length; j++) {
+                cos += vectors[c][j] * fullVectors[c][j];
+            }
+            double sign = (cos < 0) ? -1 : 1;
+            double distance = 0;
+            for (int j = 0; j < vectors[c].length; j++) {
+                double diff = vectors[c][j] - sign * fullVectors[c][j];
+                distance += diff * diff;
+            }
+            distance = Math.sqrt(distance);
+            assertTrue(name + ": eigenvector " + c + " is " + distance + " from the full one, gap " + gap,
+                    distance <= SLACK * residual / gap);
+        }
+
+        double[] fullErrors = full.reconstructionErrors(libras);
+        double[] errors = truncated.reconstructionErrors(libras);
+        assertEquals(name + ": reconstruction errors", values.length + 1, errors.length);
+        for (int c = 0; c < errors.length; c++) {
+            assertEquals(name + ": reconstruction error with " + c + " components", fullErrors[c], errors[c],
+                    RECONSTRUCTION_TOLERANCE * fullErrors[0]);
+        }
+    }
+
+    private static PrincipalComponents fit(PrincipalComponents.Solver solver, int numPrinComponents) throws Exception {
+        PrincipalComponents pca = new PrincipalComponents();
+        pca.setNumPrinComponents(numPrinComponents);
+        pca.setTransformBackToOriginal(true);
+        pca.setSolver(solver);
+        pca.buildEvaluator(libras);
+        return pca;
+    }
+
+    /**
+     * the eigenvalues in decreasing order
+     */
+    private static double[] sortedValues(PrincipalComponents pca) {
+        double[] values = pca.getEigenValues();
+        int[] order = Utils.sort(values);
+        double[] sorted = new double[values.length];
+        for (int c = 0; c < values.length; c++) {
+            sorted[c] = values[order[values.length - c - 1]];
+        }
+        return sorted;
+    }
+
+    /**
+     * the eigenvectors as rows, in decreasing order of their eigenvalues
+     */
+    private static double[][] sortedVectors(PrincipalComponents pca) {
+        double[] values = pca.getEigenValues();
+        double[][] unsorted = pca.getUnsortedEigenVectors();
+        int[] order = Utils.sort(values);
+        double[][] vectors = new double[values.length][unsorted.length];
+        for (int c = 0; c < values.length; c++) {
+            for (int j = 0; j < unsorted.length; j++) {
+                vectors[c][j] = unsorted[j][order[values.length - c - 1]];
+            }
+        }
+        return vectors;
+    }
+}
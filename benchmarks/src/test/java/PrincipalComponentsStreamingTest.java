@@ -0,0 +1,110 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import weka.core.Instances;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The streaming fit of PrincipalComponents (buildEvaluator on an ARFF file) against the batch fit
+ * (buildEvaluator on the loaded instances), on the Libras dataset: with and without a class, centered and standardized,
+ * with and without the transformation back to the original space. Both fits must give the same header and the same
+ * transformed data - the matrices they decompose differ only by rounding, and the eigenvectors are given a canonical
+ * sign, so the component scores agree as well as the back-projected data.
+ * <p>
+ * Libras is read from the directory given by the hw7.data system property, by default the parent of the working
+ * directory (the project directory when run from the benchmarks module).
+ */
+public class PrincipalComponentsStreamingTest {
+
+    //measured differences are below 1e-13, relative to the largest transformed value
+    private static final double TOLERANCE = 1e-11;
+
+    private static final int NUM_PRIN_COMPONENTS = 13;
+    //no class, and the gesture class (the last attribute)
+    private static final int[] CLASS_INDICES = {-1, 90};
+
+    private static Instances libras;
+    private static File arffFile;
+
+    @BeforeClass
+    public static void loadData() throws Exception {
+        libras = Hw7Main.loadData(new File(System.getProperty("hw7.data", ".."), "libras.txt").getPath());
+        arffFile = File.createTempFile("libras", ".arff");
+        PrintWriter writer = new PrintWriter(arffFile);
+        try {
+            writer.print(new Instances(libras, 0).toString());
+            writer.println();
+            for (int i = 0; i < libras.numInstances(); i++) {
+                writer.println(libras.instance(i).toString());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @AfterClass
+    public static void deleteData() {
+        if (arffFile != null) {
+            arffFile.delete();
+        }
+    }
+
+    @Test
+    public void centeredMatchesBatch() throws Exception {
+        for (int classIndex : CLASS_INDICES) {
+            checkAgainstBatch(true, false, classIndex);
+            checkAgainstBatch(true, true, classIndex);
+        }
+    }
+
+    @Test
+    public void standardizedMatchesBatch() throws Exception {
+        for (int classIndex : CLASS_INDICES) {
+            checkAgainstBatch(false, false, classIndex);
+            checkAgainstBatch(false, true, classIndex);
+        }
+    }
+
+    private static void checkAgainstBatch(boolean center, boolean transformBack, int classIndex) throws Exception {
+        String name = (center ? "centered" : "standardized") + (transformBack ? ", back-projected" : "")
+                + ", class " + classIndex;
+        Instances data = new Instances(libras);
+        data.setClassIndex(classIndex);
+
+        PrincipalComponents batch = newModel(center, transformBack);
+        batch.buildEvaluator(data);
+        PrincipalComponents streaming = newModel(center, transformBack);
+        streaming.buildEvaluator(arffFile, classIndex);
+
+        Instances expected = batch.transformedData(data);
+        Instances actual = streaming.transformedData(data);
+        assertEquals(name + ": attributes", expected.numAttributes(), actual.numAttributes());
+        assertEquals(name + ": class index", expected.classIndex(), actual.classIndex());
+        assertEquals(name + ": instances", expected.numInstances(), actual.numInstances());
+
+        double scale = 0;
+        for (int i = 0; i < expected.numInstances(); i++) {
+            for (int a = 0; a < expected.numAttributes(); a++) {
+                scale = Math.max(scale, Math.abs(expected.instance(i).value(a)));
+            }
+        }
+        for (int i = 0; i < expected.numInstances(); i++) {
+            for (int a = 0; a < expected.numAttributes(); a++) {
+                assertEquals(name + ": instance " + i + " attribute " + a, expected.instance(i).value(a),
+                        actual.instance(i).value(a), TOLERANCE * scale);
+            }
+        }
+    }
+
+    private static PrincipalComponents newModel(boolean center, boolean transformBack) {
+        PrincipalComponents pca = new PrincipalComponents();
+        pca.setNumPrinComponents(NUM_PRIN_COMPONENTS);
+        pca.setCenterData(center);
+        pca.setTransformBackToOriginal(transformBack);
+        return pca;
+    }
+}
@@ -0,0 +1,190 @@
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of the distinct ARGB colors of an image - a primitive open addressing hash map from the packed ARGB int
+ * to the index of the color, plus the number of pixels of every color.
+ * KMeans can cluster the distinct colors (weighted by their pixel counts) instead of every pixel, which gives the
+ * same centroids for a fraction of the work since a photo has far fewer distinct colors than pixels.
+ * The histogram is never modified once built, so several models (e.g. a K sweep) can share it.
+ */
+public class ColorHistogram {
+
+    //slot value of an empty hash table slot
+    private static final int EMPTY = -1;
+
+    //open addressing hash table (linear probing) - slot -> index of the color, or EMPTY
+    private int[] table;
+    private int mask;
+
+    //the distinct colors in order of first appearance and their pixel counts
+    private int[] colors;
+    private int[] counts;
+    private int numColors;
+
+    //color index of every pixel
+    private final int[] pixelColors;
+
+    /**
+     * build the histogram of packed ARGB pixels
+     *
+     * @param pixels packed ARGB value of every pixel
+     */
+    public ColorHistogram(int[] pixels) {
+        table = new int[64];
+        Arrays.fill(table, EMPTY);
+        mask = table.length - 1;
+        colors = new int[32];
+        counts = new int[32];
+        pixelColors = new int[pixels.length];
+
+        for (int i = 0; i < pixels.length; i++) {
+            pixelColors[i] = add(pixels[i]);
+        }
+    }
+
+    /**
+     * build the histogram of image instances (the alpha, red, green, blue attributes of Hw7Main.convertImgToInstances)
+     *
+     * @param instances
+     * @return the histogram of the colors of the instances
+     */
+    public static ColorHistogram fromInstances(Instances instances) {
+        if (instances.numAttributes() != 4) {
+            throw new IllegalArgumentException("A color histogram needs ARGB instances (4 attributes), got "
+                    + instances.numAttributes());
+        }
+
+        int[] pixels = new int[instances.numInstances()];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = pack(instances.instance(i));
+        }
+
+        return new ColorHistogram(pixels);
+    }
+
+    /**
+     * pack the alpha, red, green, blue values of an instance into an ARGB int
+     *
+     * @param instance
+     * @return the packed ARGB value
+     */
+    public static int pack(Instance instance) {
+        return ((int) instance.value(0) & 0xff) << 24 | ((int) instance.value(1) & 0xff) << 16
+                | ((int) instance.value(2) & 0xff) << 8 | ((int) instance.value(3) & 0xff);
+    }
+
+    /**
+     * add a pixel to the histogram
+     *
+     * @param argb the packed color of the pixel
+     * @return the index of the color
+     */
+    private int add(int argb) {
+        int slot = hash(argb) & mask;
+        while (table[slot] != EMPTY) {
+            int color = table[slot];
+            if (colors[color] == argb) {
+                counts[color]++;
+                return color;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        //new color
+        if (numColors == colors.length) {
+            colors = Arrays.copyOf(colors, 2 * numColors);
+            counts = Arrays.copyOf(counts, 2 * numColors);
+        }
+        int color = numColors++;
+        colors[color] = argb;
+        counts[color] = 1;
+        table[slot] = color;
+
+        //keep the load factor below 1/2
+        if (2 * numColors > table.length) {
+            rehash();
+        }
+        return color;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        Arrays.fill(table, EMPTY);
+        mask = table.length - 1;
+
+        for (int color = 0; color < numColors; color++) {
+            int slot = hash(colors[color]) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = color;
+        }
+    }
+
+    /**
+     * spread the bits of the color so neighbouring colors do not end up in neighbouring slots
+     */
+    private static int hash(int argb) {
+        int h = argb * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param argb a packed color
+     * @return the index of the color, or -1 if no pixel has this color
+     */
+    public int indexOf(int argb) {
+        int slot = hash(argb) & mask;
+        while (table[slot] != EMPTY) {
+            int color = table[slot];
+            if (colors[color] == argb) {
+                return color;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * a K-Means engine over the distinct colors, weighted by their pixel counts
+     *
+     * @return the engine
+     */
+    public KMeansEngine toEngine() {
+        return new KMeansEngine(PixelBuffer.toPoints(colors, numColors), numColors, 4,
+                Arrays.copyOf(counts, numColors));
+    }
+
+    /**
+     * expand the centroid of every distinct color to the centroid of every pixel
+     *
+     * @param colorAlloc the centroid of every distinct color
+     * @return the centroid of every pixel
+     */
+    public int[] expandAlloc(int[] colorAlloc) {
+        int[] centroidAlloc = new int[pixelColors.length];
+        for (int i = 0; i < pixelColors.length; i++) {
+            centroidAlloc[i] = colorAlloc[pixelColors[i]];
+        }
+        return centroidAlloc;
+    }
+
+    /**
+     * @param pixel index of a pixel
+     * @return the index of the color of the pixel
+     */
+    public int getPixelColor(int pixel) {
+        return pixelColors[pixel];
+    }
+
+    public int getNumColors() {
+        return numColors;
+    }
+
+    public int getNumPixels() {
+        return pixelColors.length;
+    }
+}
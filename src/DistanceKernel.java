@@ -0,0 +1,150 @@
+/**
+ * Batched float32 distance kernel for the K-Means assignment step.
+ * The points are kept as float32 planes (structure of arrays - attribute j of point i is found at planes[j][i]). A
+ * block of points is copied to the start of a scratch array, and the distances of the block to one centroid at a time
+ * are written to a distance plane by a branch free loop over consecutive points. A separate pass then keeps the closest
+ * centroid of every point.
+ * <p>
+ * The kernel computes the true squared euclidean distance in float32. 8-bit pixel values are exact in a float, but the
+ * centroids and the sums are rounded, so a point almost exactly between two centroids may pick a different one than the
+ * double precision engine.
+ */
+public class DistanceKernel {
+
+    //points in a block - the best distance of every point of the block stays in the L1 cache
+    private static final int BLOCK_SIZE = 256;
+
+    private final float[][] planes;
+    private final int numAttributes;
+
+    /**
+     * copy flat row-major points into float32 planes
+     *
+     * @param points        instance i attribute j at points[i * numAttributes + j]
+     * @param numInstances
+     * @param numAttributes
+     */
+    public DistanceKernel(double[] points, int numInstances, int numAttributes) {
+        this.numAttributes = numAttributes;
+        this.planes = new float[numAttributes][numInstances];
+
+        for (int i = 0; i < numInstances; i++) {
+            for (int j = 0; j < numAttributes; j++) {
+                planes[j][i] = (float) points[i * numAttributes + j];
+            }
+        }
+    }
+
+    /**
+     * round flat row-major centroids to float32
+     *
+     * @param centroids
+     * @param floatCentroids output, at least as long as centroids
+     */
+    public static void toFloat(double[] centroids, float[] floatCentroids) {
+        for (int i = 0; i < centroids.length; i++) {
+            floatCentroids[i] = (float) centroids[i];
+        }
+    }
+
+    /**
+     * @return work space for assign - every thread calling assign needs its own
+     */
+    public float[] newScratch() {
+        //the planes of the current block, then the distances to the current centroid, then the best distances
+        return new float[(numAttributes + 2) * BLOCK_SIZE];
+    }
+
+    /**
+     * find the closest centroid of every point in [from, to)
+     *
+     * @param from      first point
+     * @param to        end of the points (exclusive)
+     * @param centroids the K centroids as float32 (row-major)
+     * @param k         number of centroids
+     * @param closest   output - the closest centroid of point i is written to closest[i - from]
+     * @param scratch   work space from newScratch
+     */
+    public void assign(int from, int to, float[] centroids, int k, int[] closest, float[] scratch) {
+        for (int start = from; start < to; start += BLOCK_SIZE) {
+            int size = Math.min(BLOCK_SIZE, to - start);
+            //copy the block to the start of the scratch - superword only vectorizes the distance loops when all their
+            //accesses share one base index, which the point index (start + i) into several plane arrays does not
+            for (int j = 0; j < numAttributes; j++) {
+                System.arraycopy(planes[j], start, scratch, j * BLOCK_SIZE, size);
+            }
+            if (numAttributes == 4) {
+                assignBlock4(size, centroids, k, scratch, closest, start - from);
+            } else {
+                assignBlock(size, centroids, k, scratch, closest, start - from);
+            }
+        }
+    }
+
+    /**
+     * ARGB pixels - all 4 planes in one pass over the block
+     */
+    private void assignBlock4(int size, float[] centroids, int k, float[] scratch, int[] closest, int out) {
+        final int distances = 4 * BLOCK_SIZE;
+        final int best = 5 * BLOCK_SIZE;
+        for (int i = 0; i < size; i++) {
+            scratch[best + i] = Float.MAX_VALUE;
+        }
+
+        for (int c = 0; c < k; c++) {
+            float c0 = centroids[c * 4];
+            float c1 = centroids[c * 4 + 1];
+            float c2 = centroids[c * 4 + 2];
+            float c3 = centroids[c * 4 + 3];
+            //branch free - the loop superword compiles into SIMD instructions
+            for (int i = 0; i < size; i++) {
+                float d0 = scratch[i] - c0;
+                float d1 = scratch[BLOCK_SIZE + i] - c1;
+                float d2 = scratch[2 * BLOCK_SIZE + i] - c2;
+                float d3 = scratch[3 * BLOCK_SIZE + i] - c3;
+                scratch[distances + i] = d0 * d0 + d1 * d1 + d2 * d2 + d3 * d3;
+            }
+            updateClosest(size, c, scratch, distances, best, closest, out);
+        }
+    }
+
+    /**
+     * any number of attributes - the distances of the block are accumulated one plane at a time
+     */
+    private void assignBlock(int size, float[] centroids, int k, float[] scratch, int[] closest, int out) {
+        final int distances = numAttributes * BLOCK_SIZE;
+        final int best = distances + BLOCK_SIZE;
+        for (int i = 0; i < size; i++) {
+            scratch[best + i] = Float.MAX_VALUE;
+        }
+
+        for (int c = 0; c < k; c++) {
+            for (int i = 0; i < size; i++) {
+                scratch[distances + i] = 0;
+            }
+            for (int j = 0; j < numAttributes; j++) {
+                int plane = j * BLOCK_SIZE;
+                float center = centroids[c * numAttributes + j];
+                for (int i = 0; i < size; i++) {
+                    float d = scratch[plane + i] - center;
+                    scratch[distances + i] += d * d;
+                }
+            }
+            updateClosest(size, c, scratch, distances, best, closest, out);
+        }
+    }
+
+    /**
+     * the argmin pass - keep centroid c for every point of the block it is closer to than the best so far. The store
+     * depends on the comparison, so this loop stays scalar.
+     */
+    private static void updateClosest(int size, int c, float[] scratch, int distances, int best, int[] closest,
+                                      int out) {
+        for (int i = 0; i < size; i++) {
+            if (scratch[distances + i] < scratch[best + i]) {
+                scratch[best + i] = scratch[distances + i];
+                closest[out + i] = c;
+            }
+        }
+    }
+}
@@ -24,61 +24,30 @@ public class Hw7Main {
         return inputReader;
     }
 
+    /**
+     * convert an image to instances (alpha, red, green, blue) - one instance per pixel, in row-major order.
+     * The pixels are read in bulk through PixelBuffer; code that does not need weka instances should use the
+     * PixelBuffer directly.
+     *
+     * @param image
+     * @return the pixels of the image as instances
+     */
     public static Instances convertImgToInstances(BufferedImage image) {
-        Attribute attribute1 = new Attribute("alpha");
-        Attribute attribute2 = new Attribute("red");
-        Attribute attribute3 = new Attribute("green");
-        Attribute attribute4 = new Attribute("blue");
-        FastVector fvWekaAttributes = new FastVector(4);
-        fvWekaAttributes.addElement(attribute1);
-        fvWekaAttributes.addElement(attribute2);
-        fvWekaAttributes.addElement(attribute3);
-        fvWekaAttributes.addElement(attribute4);
-        Instances imageInstances = new Instances("Image", fvWekaAttributes, image.getHeight() * image.getWidth());
-
-        int[][] result = new int[image.getHeight()][image.getWidth()];
-        int[][][] resultARGB = new int[image.getHeight()][image.getWidth()][4];
-
-        for (int col = 0; col < image.getWidth(); col++) {
-            for (int row = 0; row < image.getHeight(); row++) {
-                int pixel = image.getRGB(col, row);
-
-                int alpha = (pixel >> 24) & 0xff;
-                int red = (pixel >> 16) & 0xff;
-                int green = (pixel >> 8) & 0xff;
-                int blue = (pixel) & 0xff;
-                result[row][col] = pixel;
-                resultARGB[row][col][0] = alpha;
-                resultARGB[row][col][1] = red;
-                resultARGB[row][col][2] = green;
-                resultARGB[row][col][3] = blue;
-
-                Instance iExample = new DenseInstance(4);
-                iExample.setValue((Attribute) fvWekaAttributes.elementAt(0), alpha);// alpha
-                iExample.setValue((Attribute) fvWekaAttributes.elementAt(1), red);// red
-                iExample.setValue((Attribute) fvWekaAttributes.elementAt(2), green);// green
-                iExample.setValue((Attribute) fvWekaAttributes.elementAt(3), blue);// blue
-                imageInstances.add(iExample);
-            }
-        }
-
-        return imageInstances;
-
+        return PixelBuffer.fromImage(image).toInstances();
     }
 
 
     public static BufferedImage convertInstancesToImg(Instances instancesImage, int width, int height) {
         final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        int index = 0;
-        for (int col = 0; col < width; ++col) {
-            for (int row = 0; row < height; ++row) {
-                Instance instancePixel = instancesImage.instance(index);
-                int pixel = ((int) instancePixel.value(0) << 24) | (int) instancePixel.value(1) << 16
-                        | (int) instancePixel.value(2) << 8 | (int) instancePixel.value(3);
-                image.setRGB(col, row, pixel);
-                index++;
-            }
+        int[] pixels = new int[width * height];
+        //the instances are in row-major order (see convertImgToInstances)
+        for (int index = 0; index < pixels.length; index++) {
+            Instance instancePixel = instancesImage.instance(index);
+            pixels[index] = ((int) instancePixel.value(0) << 24) | (int) instancePixel.value(1) << 16
+                    | (int) instancePixel.value(2) << 8 | (int) instancePixel.value(3);
         }
+        //write all the pixels in one call
+        image.setRGB(0, 0, width, height, pixels, 0, width);
         return image;
     }
 
@@ -86,35 +55,30 @@ public class Hw7Main {
         //create instances object from image and quantize it using Kmeans
         BufferedImage image = ImageIO.read(new File("baboon_face.jpg"));
 
-        //convert image to instances
-        Instances imageInstances = convertImgToInstances(image);
-
-        //run K-menas algorithm on the selected image file
-        KMeans KmeansClassifier = new KMeans();
-
-        //both are required in order to output the image
-        Instances centroidInstances = null ;
-        int[] centroidAlloc = null ;
-
-        for(int i = 0 ; i < K_VALUES.length ; i++) {
-            //set the K num. of the model
-            KmeansClassifier.setK(K_VALUES[i]);
-
-            //build the centroids
-            KmeansClassifier.buildClusterModel(imageInstances);
-
-            //save the centroidInstances and centroid allocations
-            centroidInstances = KmeansClassifier.getCentroidInstances();
-            centroidAlloc = KmeansClassifier.getCentroidAlloc();
-        }
+        //read the pixels of the image (in bulk)
+        PixelBuffer pixels = PixelBuffer.fromImage(image);
+
+        //run K-menas algorithm on the selected image file - one model per K over the distinct colors of the image,
+        //every K seeded from the clusters of the previous one (on all the cores), and print the time and error of
+        //every K. a K stops once no centroid moves more than 0.05 (or at the iteration cap)
+        KMeansSweep sweep = new KMeansSweep(pixels) {
+            @Override
+            protected KMeans createModel(int k) {
+                KMeans model = super.createModel(k);
+                model.setCentroidShiftTolerance(0.05);
+                return model;
+            }
+        };
+        sweep.setUseColorHistogram(true);
+        sweep.setWarmStart(true);
+        sweep.run(K_VALUES);
+        sweep.report(System.out);
 
         //quantize the result with the lowest error and output it to a jpg file
-        //first set the centroids instances and the centroid allocation table (for eah instance - its corresponding centroid)
-        KmeansClassifier.setCentroidAlloc(centroidAlloc);
-        KmeansClassifier.setCentroidInstances(centroidInstances);
+        KMeans KmeansClassifier = sweep.getBest().getModel();
 
-        Instances quantizedInstances = KmeansClassifier.quantize(imageInstances);
-        BufferedImage out = convertInstancesToImg(quantizedInstances,image.getWidth(),image.getHeight());
+        //map every pixel straight to the color of its centroid
+        BufferedImage out = KmeansClassifier.quantizeToImage(image.getWidth(), image.getHeight());
 
         File outputfile = new File("output.jpg");
          ImageIO.write(out, "jpg", outputfile);
@@ -130,14 +94,14 @@ public class Hw7Main {
         //init. an arraylist later to be exported as csv file
         ArrayList<Double> pcaResult = new ArrayList<Double>();
 
+        //the decomposition doesn't depend on the number of components - fit it once and compute the average distance
+        //of the reconstructed instances from the original instances for every number of components in one pass
         PrincipalComponents pca = new PrincipalComponents();
+        pca.setTransformBackToOriginal(true);
+        pca.buildEvaluator(libras);
+        double[] errors = pca.reconstructionErrors(libras);
         for(int i = 13 ; i < libras.numAttributes() ; i++) {
-            //calc the average distance of the instances from the original instances after the PCA performed over the original dataset has been transformed
-            pca.setNumPrinComponents(i);
-            pca.setTransformBackToOriginal(true);
-            pca.buildEvaluator(libras);
-            Instances data2 = pca.transformedData(libras);
-            double dist = calcAvgDistance(data2, libras);
+            double dist = errors[pca.numComponents(i)];
 
             //output resulting distance to the systemout and retain results in a datastructuer later to be written to a file to be used
             //fro a an excel spreadsheet scatterplot
@@ -1,20 +1,82 @@
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Set;
 
 public class KMeans {
 
+    /**
+     * why the last clustering run stopped iterating
+     */
+    public enum StopReason {
+        //the hard cap on the number of iterations was reached
+        MAX_ITERATIONS,
+        //no instance changed its centroid
+        NO_CHANGE,
+        //no centroid moved more than the shift tolerance
+        CENTROID_SHIFT,
+        //the relative improvement of the WSSSE dropped below the threshold
+        WSSSE_IMPROVEMENT
+    }
 
+    /**
+     * how the initial centroids are chosen
+     */
+    public enum Seeding {
+        //K distinct uniform random instances
+        UNIFORM,
+        //k-means++ - every next centroid is picked with probability proportional to its squared distance
+        KMEANS_PLUS_PLUS,
+        //k-means|| - oversampled k-means++ rounds over a sample of the instances, reduced to K centroids
+        KMEANS_PARALLEL
+    }
 
     public int K = 2;
     private final int NUM_ITERATIONS = 40;
+    //stopping criteria - maxIterations is a hard cap, a tolerance/threshold <= 0 disables that criterion
+    private int maxIterations = NUM_ITERATIONS;
+    private double centroidShiftTolerance = 0;
+    private double wssseImprovementThreshold = 0;
+    //number of iterations actually run by the last buildClusterModel (a single run - empty clusters are repaired in
+    //place) and why it stopped
+    private int iterationsRun;
+    private StopReason stopReason;
+    //number of empty clusters repaired by the last clustering run
+    private int repairCount;
     private int centroidAlloc[];
     private Instances centroidInstances;
     private int[] instanceCountCentroid;
+    //primitive work buffers of findKMeansCentroids, kept between runs - centroid coordinates and sums (row-major)
+    private double[] centroidCoordinates;
+    private double[] centroidSums;
+    //run the iterations over primitive arrays (KMeansEngine) rather than over weka Instance objects
+    private boolean useFlatEngine = true;
+    //number of worker threads used by the flat engine
+    private int parallelism = 1;
+    //skip distance computations using triangle inequality bounds (same clustering as the brute force assignment)
+    private boolean acceleratedAssignment = false;
+    //batched float32 distance kernel in the flat engine (SIMD friendly, see DistanceKernel)
+    private boolean floatKernel = false;
+    //mini-batch K-Means - number of instances sampled per iteration (0 = full batch) and number of mini-batches
+    private int miniBatchSize = 0;
+    private int miniBatchIterations = 100;
+    //seeding strategy of initializeCentroids and the seed of its random generator
+    private Seeding seeding = Seeding.UNIFORM;
+    private long seed = 12345;
+    //cluster the distinct colors weighted by their pixel counts rather than every pixel (flat engine, ARGB instances)
+    private boolean useColorHistogram = false;
+    //histogram of the last model built in color histogram mode - used by quantize as a color -> centroid lookup table
+    private ColorHistogram colorHistogram;
+    //centroid of every distinct color of the histogram
+    private int[] colorAlloc;
 
     /**
      * output: should initialize any parameters (therefore should call initializecentroids)
@@ -24,30 +86,124 @@ public class KMeans {
      * @param instances
      */
     public void buildClusterModel(Instances instances) {
-        //initialize parameters
-        this.centroidInstances = initializeCentroids(instances);
-        boolean emptyCentroid = true;
+        if (instances.numInstances() == 0) {
+            throw new IllegalArgumentException("K-Means needs at least one instance, got none");
+        }
+        iterationsRun = 0;
+        repairCount = 0;
+        colorHistogram = null;
+
+        if (!useFlatEngine) {
+            //initialize parameters
+            this.centroidInstances = initializeCentroids(instances);
+
+            //run K-means algorithm
+            //NOTE:
+            // empty clusters are repaired inside the iterations (re-seeded from the instance with the largest error),
+            // so a single run is always enough
+            findKMeansCentroids(instances);
+            return;
+        }
 
+        //copy the instances once into a flat primitive array - or collapse them into their distinct colors
+        if (useColorHistogram) {
+            colorHistogram = ColorHistogram.fromInstances(instances);
+            buildFlatModel(colorHistogram.toEngine(), new Instances(instances, K), null);
+        } else {
+            buildFlatModel(new KMeansEngine(instances), new Instances(instances, K), null);
+        }
+    }
 
-        //run K-means algorithm
-        //NOTE:
-        // in case an empty centroid is created in the process, repeat cluster building using different random centroid
-        //instances
-        while(emptyCentroid) {
-            //find K means centroids
-            findKMeansCentroids(instances);
+    /**
+     * same as buildClusterModel(Instances), but reads the pixels straight from a pixel buffer - no instance per pixel
+     * is ever created. The centroid allocation follows the row-major order of the buffer.
+     *
+     * @param pixels
+     */
+    public void buildClusterModel(PixelBuffer pixels) {
+        if (useColorHistogram) {
+            ColorHistogram histogram = new ColorHistogram(pixels.getPixels());
+            buildClusterModel(histogram.toEngine(), histogram);
+        } else {
+            buildClusterModel(pixels.toEngine(), null);
+        }
+    }
 
-            //detect empty centroids
-            for(int i = 0 ; i < K ; i++) {
-                //1 meaning only the centroid instance itself
-                if (instanceCountCentroid[i] == 1) {
-                    emptyCentroid = true;
-                    break;
-                }
+    /**
+     * build the model over the (ARGB) points of an existing engine - used by KMeansSweep to run several models over
+     * one copy of the pixels. The engine must not be used by another model at the same time (see the KMeansEngine
+     * sharing constructor), while the histogram is read only and can be shared.
+     *
+     * @param engine    the pixels, or the distinct colors of the histogram
+     * @param histogram the histogram the engine was made of, null if the engine holds the pixels
+     */
+    void buildClusterModel(KMeansEngine engine, ColorHistogram histogram) {
+        buildClusterModel(engine, histogram, null);
+    }
 
-                //if no empty centroid has been found - decalre as false - the process is successful!
-                emptyCentroid=false;
-            }
+    /**
+     * same as buildClusterModel(KMeansEngine, ColorHistogram), started from the given centroids instead of the seeding
+     * strategy (warm start)
+     *
+     * @param engine
+     * @param histogram
+     * @param initialCentroids the K initial centroids (row-major), null to use the seeding strategy
+     */
+    void buildClusterModel(KMeansEngine engine, ColorHistogram histogram, double[] initialCentroids) {
+        iterationsRun = 0;
+        repairCount = 0;
+        colorHistogram = histogram;
+
+        buildFlatModel(engine, PixelBuffer.header(K), initialCentroids);
+    }
+
+    /**
+     * seed and run the flat engine, then copy the centroids into centroid instances with the given header
+     *
+     * @param engine           the points to cluster - the pixels, or the distinct colors in color histogram mode
+     * @param header           empty dataset for the centroid instances
+     * @param initialCentroids the initial centroids (row-major), null to use the seeding strategy
+     */
+    private void buildFlatModel(KMeansEngine engine, Instances header, double[] initialCentroids) {
+        if (engine.getNumInstances() == 0) {
+            throw new IllegalArgumentException("K-Means needs at least one instance, got none");
+        }
+        engine.setParallelism(parallelism);
+        engine.setAccelerated(acceleratedAssignment);
+        engine.setFloatKernel(floatKernel);
+        engine.setStoppingCriteria(maxIterations, centroidShiftTolerance, wssseImprovementThreshold);
+
+        //initialize parameters
+        double[] centroids = (initialCentroids != null) ? initialCentroids.clone()
+                : engine.seedCentroids(chooseSeeds(engine, colorHistogram, new Random(seed)));
+        centroidAlloc = new int[engine.getNumInstances()];
+        if (instanceCountCentroid == null || instanceCountCentroid.length != K) {
+            instanceCountCentroid = new int[K];
+        }
+
+        if (miniBatchSize > 0) {
+            //mini-batch mode
+            engine.miniBatchKMeans(centroids, K, centroidAlloc, instanceCountCentroid, miniBatchSize,
+                    miniBatchIterations, new Random(seed));
+        } else {
+            //run K-means algorithm - empty clusters are repaired inside the iterations, so a single run is enough
+            engine.findKMeansCentroids(centroids, K, centroidAlloc, instanceCountCentroid);
+        }
+        iterationsRun = engine.getIterationsRun();
+        stopReason = engine.getStopReason();
+        repairCount = engine.getRepairCount();
+
+        //copy the final centroids into the centroid instances
+        centroidInstances = header;
+        for (int i = 0; i < K; i++) {
+            centroidInstances.add(new DenseInstance(header.numAttributes()));
+        }
+        engine.writeCentroids(centroids, centroidInstances);
+
+        //in color histogram mode expand the allocation of the distinct colors to every pixel
+        if (colorHistogram != null) {
+            colorAlloc = centroidAlloc;
+            centroidAlloc = colorHistogram.expandAlloc(colorAlloc);
         }
     }
 
@@ -61,32 +217,61 @@ public class KMeans {
      */
     public Instances initializeCentroids(Instances instances) {
         //randomize the instances in the set in order to select K instances as initial centroids (also better in general)
-        Random rand = new Random(12345);
-
-        //randomly select K values in the range of our instances (in order to select K random instances as centroids)
-        Set<Integer> generated = new LinkedHashSet<Integer>();
-        while (generated.size() < K)
-        {
-            Integer next = rand.nextInt(instances.numInstances()) ;
-            // As we're adding to a set, this will automatically do a containment check - no duplicates ! :-)
-            generated.add(next);
+        Random rand = new Random(seed);
+
+        //select K instances according to the seeding strategy (only the smarter strategies need a flat copy)
+        int[] seeds;
+        if (seeding == Seeding.UNIFORM) {
+            seeds = KMeansSeeding.uniform(instances.numInstances(), K, rand);
+        } else {
+            seeds = chooseSeeds(new KMeansEngine(instances), null, rand);
         }
 
         //create an empty instances object with capacity K
         Instances centroidInstances = new Instances(instances, K);
 
-        //create an iterator and then assign centroid instances with the random generated values
-        Iterator randInstances = generated.iterator();
-
-        while(randInstances.hasNext()){
-            centroidInstances.add(instances.instance((int) randInstances.next()));
+        //assign centroid instances with the selected instances
+        for (int i = 0; i < seeds.length; i++) {
+            centroidInstances.add(instances.instance(seeds[i]));
         }
 
         return centroidInstances;
     }
 
+    /**
+     * select the points of the engine used as the initial centroids, according to the seeding strategy
+     *
+     * @param engine
+     * @param histogram the histogram the engine was built from in color histogram mode, otherwise null
+     * @param rand
+     * @return the indices of the engine points chosen as the initial centroids
+     */
+    private int[] chooseSeeds(KMeansEngine engine, ColorHistogram histogram, Random rand) {
+        if (seeding == Seeding.UNIFORM) {
+            //pick pixels (not distinct colors) so the seeds are the same with and without the color histogram
+            int numPixels = (histogram != null) ? histogram.getNumPixels() : engine.getNumInstances();
+            int[] seeds = KMeansSeeding.uniform(numPixels, K, rand);
+            if (histogram != null) {
+                for (int i = 0; i < seeds.length; i++) {
+                    seeds[i] = histogram.getPixelColor(seeds[i]);
+                }
+            }
+            return seeds;
+        }
+
+        KMeansSeeding seeder = new KMeansSeeding(engine);
+        if (seeding == Seeding.KMEANS_PLUS_PLUS) {
+            return seeder.kMeansPlusPlus(K, rand);
+        } else {
+            return seeder.kMeansParallel(K, rand);
+        }
+    }
+
     /**
      * output: should find/store the centroids according to the KMeans algorithm
+     * runs up to maxIterations iterations and stops early once no instance changes its centroid, once no centroid
+     * moves more than the centroid shift tolerance or once the WSSSE improves by less than the threshold - the same
+     * stopping criteria as the flat engine
      *
      * @param instances
      * @return
@@ -98,67 +283,212 @@ public class KMeans {
 
         //allocate the instance to the centroid (temp array)
 
+        stopReason = StopReason.MAX_ITERATIONS;
+
+        //the attributes to cluster on - all but the class
+        int numAttributes = instances.numAttributes();
+        int classIndex = instances.classIndex();
+
+        //the iterations work on primitive buffers (centroid coordinates, sums and counts) which are allocated once and
+        //kept for the next run - the centroid instances are only written once the iterations are done
+        int size = K * numAttributes;
+        if (centroidCoordinates == null || centroidCoordinates.length < size) {
+            centroidCoordinates = new double[size];
+            centroidSums = new double[size];
+        }
+        if (instanceCountCentroid == null || instanceCountCentroid.length != K) {
+            instanceCountCentroid = new int[K];
+        }
+        double[] centroids = centroidCoordinates;
+        double[] centroidMeans = centroidSums;
+        for (int i = 0; i < K; i++) {
+            for (int j = 0; j < numAttributes; j++) {
+                centroids[i * numAttributes + j] = centroidInstances.instance(i).value(j);
+            }
+        }
+
+        //the error is only needed by the WSSSE criterion
+        boolean withError = wssseImprovementThreshold > 0;
+        double previousError = Double.NaN;
+
         //loop until set iterations have been completed
-        for (int itr = 0; itr < NUM_ITERATIONS; itr++) {
+        for (int itr = 0; itr < maxIterations; itr++) {
 
             //reset centroid instance counter variables
-            instanceCountCentroid = new int[K];
+            Arrays.fill(instanceCountCentroid, 0);
+            //the first iteration always counts as a change
+            boolean changed = itr == 0;
+            double error = 0;
 
             //find the closest centroid for each instance and save it in a temporary array
             for (int i = 0; i < instances.numInstances(); i++) {
-                centroidAlloc[i] = findClosestCentroid(instances.instance(i));
+                Instance instance = instances.instance(i);
+                int closest = findClosestCentroid(instance, centroids, classIndex);
+                if (centroidAlloc[i] != closest) {
+                    changed = true;
+                }
+                centroidAlloc[i] = closest;
+                if (withError) {
+                    error += Math.sqrt(squaredDistance(instance, centroids, closest, classIndex));
+                }
                 //increment the counter for this centroid (of instances)
                 instanceCountCentroid[centroidAlloc[i]] += 1;
             }
 
+            //give every empty centroid the instance with the largest error, so no centroid mean is left undefined
+            if (repairEmptyClusters(instances, centroids, classIndex)) {
+                changed = true;
+            }
+
             //calculate the new mean of the centroid
-            double[][] centroidMeans = new double[K][4];
+            Arrays.fill(centroidMeans, 0, size, 0);
 
             for (int i = 0; i < instances.numInstances(); i++) {
-                for (int j = 0; j < 4; j++) {
+                Instance instance = instances.instance(i);
+                int offset = centroidAlloc[i] * numAttributes;
+                for (int j = 0; j < numAttributes; j++) {
+                    if (j == classIndex) {
+                        continue;
+                    }
                     //for each instance, according to the centroid it was assigned to, add the values from each attribute
                     //to a total sum representing the centroid's mean. Once the outer loop iterates over all the instances
                     //each centroid's attribute will be divided by the number of instances the centroid was associated with
                     //to calculate the mean of the centroid.
-
-                    //NOTE: starting from K is due to the fact the first K instance were used as our centroids
-                    centroidMeans[centroidAlloc[i]][j] += instances.instance(i).value(j);
+                    centroidMeans[offset + j] += instance.value(j);
                 }
             }
 
-            //now calculate the mean for each centroid (divide by the number of instances associated with it
+            //now calculate the mean for each centroid (divide by the number of instances associated with it, and keep
+            //track of how far the centroids moved
+            double maxShift = 0;
             for (int i = 0; i < K; i++) {
-                for (int j = 0; j < 4; j++) {
-                    centroidMeans[i][j] /= instanceCountCentroid[i];
-                    //All centroid means have been calculated - replace the centroid instance attribute values according to the new
-                    //means calculated: each instance is a centroid, the values are the attribute values
-                    centroidInstances.instance(i).setValue(j, centroidMeans[i][j]);
+                double shift = 0;
+                for (int j = 0; j < numAttributes; j++) {
+                    if (j == classIndex) {
+                        continue;
+                    }
+                    double mean = centroidMeans[i * numAttributes + j] / instanceCountCentroid[i];
+                    double diff = mean - centroids[i * numAttributes + j];
+                    shift += diff * diff;
+                    centroids[i * numAttributes + j] = mean;
                 }
+                maxShift = Math.max(maxShift, Math.sqrt(shift));
+            }
+
+            iterationsRun++;
+
+            //the centroids are a fixed point once no instance changed its centroid
+            if (!changed) {
+                stopReason = StopReason.NO_CHANGE;
+                break;
             }
+            if (maxShift < centroidShiftTolerance) {
+                stopReason = StopReason.CENTROID_SHIFT;
+                break;
+            }
+            if (withError && previousError > 0 && (previousError - error) / previousError < wssseImprovementThreshold) {
+                stopReason = StopReason.WSSSE_IMPROVEMENT;
+                break;
+            }
+            previousError = error;
+        }
 
+        //All centroid means have been calculated - replace the centroid instance attribute values according to the new
+        //means calculated: each instance is a centroid, the values are the attribute values. The class is not
+        //clustered on, so it is left missing rather than keeping the class of the seed instance (as in the flat engine)
+        for (int i = 0; i < K; i++) {
+            for (int j = 0; j < numAttributes; j++) {
+                if (j == classIndex) {
+                    centroidInstances.instance(i).setMissing(j);
+                } else {
+                    centroidInstances.instance(i).setValue(j, centroids[i * numAttributes + j]);
+                }
+            }
         }
 
         return centroidInstances;
     }
 
     /**
-     * calculate the euclidean distance between 2 instances
+     * re-seed every empty centroid with the instance furthest from its own centroid. The instance is moved to the
+     * empty cluster, and only taken from clusters with more than one instance so no new empty cluster is made.
+     *
+     * @param instances
+     * @param centroids  the centroid coordinates (row-major, every attribute of the instances)
+     * @param classIndex
+     * @return true if any cluster was repaired
+     */
+    private boolean repairEmptyClusters(Instances instances, double[] centroids, int classIndex) {
+        boolean repaired = false;
+
+        for (int c = 0; c < K; c++) {
+            if (instanceCountCentroid[c] != 0) {
+                continue;
+            }
+
+            //find the instance with the largest error
+            int farthest = -1;
+            double maxError = -1;
+            for (int i = 0; i < instances.numInstances(); i++) {
+                if (instanceCountCentroid[centroidAlloc[i]] > 1) {
+                    double error = squaredDistance(instances.instance(i), centroids, centroidAlloc[i], classIndex);
+                    if (error > maxError) {
+                        maxError = error;
+                        farthest = i;
+                    }
+                }
+            }
+
+            //nothing left to take from
+            if (farthest < 0) {
+                break;
+            }
+
+            instanceCountCentroid[centroidAlloc[farthest]] -= 1;
+            instanceCountCentroid[c] += 1;
+            centroidAlloc[farthest] = c;
+            repairCount++;
+            repaired = true;
+        }
+
+        return repaired;
+    }
+
+    /**
+     * calculate the squared euclidean distance between 2 instances (over all the attributes but the class) - no square
+     * root, which does not change the order of distances, so this is what comparisons (e.g. findClosestCentroid)
+     * should use
      *
      * @param a
      * @param b
      * @return
      */
     public double calcSquaredDistance(Instance a, Instance b) {
-        //go over all attributes of our instances and calculate the squared dist(euclidean)
-        int dist = 0;
+        int classIndex = (a.dataset() == null) ? -1 : a.classIndex();
+
+        //go over all attributes of our instances and sum the squared differences
+        double dist = 0;
 
         for (int i = 0; i < a.numAttributes(); i++) {
-            dist += Math.pow((a.value(i) - b.value(i)), 2);
+            if (i == classIndex) {
+                continue;
+            }
+            double diff = a.value(i) - b.value(i);
+            dist += diff * diff;
         }
 
-        double distance = Math.sqrt(dist);
+        return dist;
+    }
 
-        return distance;
+    /**
+     * calculate the euclidean distance between 2 instances - for reporting errors
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public double calcDistance(Instance a, Instance b) {
+        return Math.sqrt(calcSquaredDistance(a, b));
     }
 
 
@@ -184,6 +514,42 @@ public class KMeans {
         return closestIndex;
     }
 
+    /**
+     * findClosestCentroid over primitive centroid coordinates (used by the iterations of findKMeansCentroids)
+     */
+    private int findClosestCentroid(Instance instance, double[] centroids, int classIndex) {
+        double minDist = Double.MAX_VALUE;
+        int closestIndex = 0;
+
+        for (int i = 0; i < K; i++) {
+            double curDist = squaredDistance(instance, centroids, i, classIndex);
+            if (curDist < minDist) {
+                minDist = curDist;
+                closestIndex = i;
+            }
+        }
+        return closestIndex;
+    }
+
+    /**
+     * calcSquaredDistance between an instance and a centroid given by its primitive coordinates
+     */
+    private double squaredDistance(Instance instance, double[] centroids, int centroid, int classIndex) {
+        int numAttributes = instance.numAttributes();
+        int offset = centroid * numAttributes;
+        double dist = 0;
+
+        for (int i = 0; i < numAttributes; i++) {
+            if (i == classIndex) {
+                continue;
+            }
+            double diff = instance.value(i) - centroids[offset + i];
+            dist += diff * diff;
+        }
+
+        return dist;
+    }
+
     /**
      * output: should replace every instance in Instances to the centroid to which it is closest to and return the new Instances object.
      *
@@ -193,12 +559,27 @@ public class KMeans {
     public Instances quantize(Instances curinstances) {
         //using the centroid allocation array we've created while creating the centroids, we will replace each instance according to the centroid it is
         //assoicated with (using centroidInstances object we've created)
+        //the class of an instance is kept
+        int classIndex = curinstances.classIndex();
         for(int i = 0 ; i < curinstances.numInstances() ; i++){
-            for(int j = 0 ; j < 4 ; j++) {
+            int centroid;
+            if (colorHistogram != null) {
+                //color histogram mode - look the centroid up by the color of the instance (a color the model has not
+                //seen falls back to the closest centroid)
+                int color = colorHistogram.indexOf(ColorHistogram.pack(curinstances.instance(i)));
+                centroid = (color < 0) ? findClosestCentroid(curinstances.instance(i)) : colorAlloc[color];
+            } else {
+                centroid = centroidAlloc[i];
+            }
+
+            for(int j = 0 ; j < curinstances.numAttributes() ; j++) {
+                if (j == classIndex) {
+                    continue;
+                }
                 //for each instance - replace it's values with those of the centroid affiliated with it
                 //specifically - for the instance i, find what centroid it is associated with via centroid instances field, and the centroid allocated to it
                 //then set the requires values
-                curinstances.instance(i).setValue(j,centroidInstances.instance(centroidAlloc[i]).value(j));
+                curinstances.instance(i).setValue(j,centroidInstances.instance(centroid).value(j));
             }
         }
 
@@ -206,6 +587,94 @@ public class KMeans {
     }
 
 
+    /**
+     * quantized image of the clustered pixels - the palette is built once from the centroids and centroidAlloc is
+     * mapped straight into the image's int raster (no per pixel setValue / setRGB). The centroid values are truncated
+     * the same way Hw7Main.convertInstancesToImg truncates the quantized instances.
+     *
+     * @param width  width of the image (centroidAlloc is in row-major order)
+     * @param height height of the image
+     * @return an RGB image where every pixel has the color of its centroid
+     */
+    public BufferedImage quantizeToImage(int width, int height) {
+        checkImageSize(width, height);
+        int[] palette = buildPalette();
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] raster = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < raster.length; i++) {
+            raster[i] = palette[centroidAlloc[i]];
+        }
+
+        return image;
+    }
+
+    /**
+     * indexed-color (palette) version of quantizeToImage - the image stores only the centroid index of every pixel and
+     * a K entry color map, which skips the ARGB repacking and makes a much smaller image (e.g. for PNG/GIF output).
+     *
+     * @param width  width of the image (centroidAlloc is in row-major order)
+     * @param height height of the image
+     * @return an indexed-color image with one palette entry per centroid
+     */
+    public BufferedImage quantizeToIndexedImage(int width, int height) {
+        checkImageSize(width, height);
+        int[] palette = buildPalette();
+
+        byte[] red = new byte[K];
+        byte[] green = new byte[K];
+        byte[] blue = new byte[K];
+        for (int i = 0; i < K; i++) {
+            red[i] = (byte) (palette[i] >> 16);
+            green[i] = (byte) (palette[i] >> 8);
+            blue[i] = (byte) palette[i];
+        }
+
+        //a byte per pixel is enough for up to 256 centroids, more need 16 bit indices
+        if (K <= 256) {
+            IndexColorModel colorModel = new IndexColorModel(8, K, red, green, blue);
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+            byte[] raster = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < raster.length; i++) {
+                raster[i] = (byte) centroidAlloc[i];
+            }
+            return image;
+        }
+
+        IndexColorModel colorModel = new IndexColorModel(16, K, red, green, blue);
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(width, height);
+        short[] data = ((DataBufferUShort) raster.getDataBuffer()).getData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) centroidAlloc[i];
+        }
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * the packed ARGB color of every centroid
+     */
+    private int[] buildPalette() {
+        int[] palette = new int[K];
+        for (int i = 0; i < K; i++) {
+            Instance centroid = centroidInstances.instance(i);
+            palette[i] = ((int) centroid.value(0) << 24) | (int) centroid.value(1) << 16
+                    | (int) centroid.value(2) << 8 | (int) centroid.value(3);
+        }
+        return palette;
+    }
+
+    private void checkImageSize(int width, int height) {
+        if (centroidInstances.numAttributes() != 4) {
+            throw new IllegalArgumentException("An image needs ARGB centroids (4 attributes), got "
+                    + centroidInstances.numAttributes());
+        }
+        if (centroidAlloc == null || centroidAlloc.length != width * height) {
+            throw new IllegalArgumentException("The centroid allocation does not match a " + width + "x" + height
+                    + " image");
+        }
+    }
+
+
     /**
      * output: should calculate the average within set sum of squared error.
      * That is it should calculate the square root of the sum of the squared distances of every instance from the closest centroid to it.
@@ -218,7 +687,7 @@ public class KMeans {
         double addSum = 0;
 
         for (int i = 0; i < instances.numInstances() ; i++){
-            addSum += calcSquaredDistance(instances.instance(i),centroidInstances.instance(centroidAlloc[i]));
+            addSum += calcDistance(instances.instance(i),centroidInstances.instance(centroidAlloc[i]));
         }
 
         //calculate the average, as instructed in the Piazza post from 12/6
@@ -227,25 +696,190 @@ public class KMeans {
         return addSum;
     }
 
+    /**
+     * same as calcAvgWSSSE(Instances), over the pixels of a pixel buffer (no instance per pixel)
+     *
+     * @param pixels the pixels the model was built on
+     * @return the average error
+     */
+    public double calcAvgWSSSE(PixelBuffer pixels) {
+        int[] argb = pixels.getPixels();
+        double[][] centroids = new double[K][];
+        for (int i = 0; i < K; i++) {
+            centroids[i] = centroidInstances.instance(i).toDoubleArray();
+        }
+
+        double addSum = 0;
+        for (int i = 0; i < argb.length; i++) {
+            double[] centroid = centroids[centroidAlloc[i]];
+
+            //same as calcDistance, over alpha, red, green, blue
+            double dist = 0;
+            for (int j = 0, shift = 24; j < 4; j++, shift -= 8) {
+                double diff = ((argb[i] >> shift) & 0xff) - centroid[j];
+                dist += diff * diff;
+            }
+            addSum += Math.sqrt(dist);
+        }
+
+        return addSum / argb.length;
+    }
+
     // simple setters and getters to fields of the class used by the main
 
     public void setK(int k) {
         K = k;
     }
 
+    public void setUseFlatEngine(boolean useFlatEngine) {
+        this.useFlatEngine = useFlatEngine;
+    }
+
+    /**
+     * set the number of threads the flat engine uses for the assignment and mean accumulation - the result is the
+     * same for any number of threads
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * use the triangle inequality accelerated assignment (Hamerly's algorithm) in the flat engine. It keeps bounds on
+     * the distances of every instance so most distance computations are skipped once the centroids settle - worth it
+     * for large K. The clustering is exactly the same as the brute force assignment.
+     *
+     * @param acceleratedAssignment
+     */
+    public void setAcceleratedAssignment(boolean acceleratedAssignment) {
+        this.acceleratedAssignment = acceleratedAssignment;
+    }
+
+    /**
+     * assign the instances with the batched float32 distance kernel in the flat engine - several pixels per SIMD
+     * instruction instead of one distance at a time. Float rounding can change the centroid of an instance lying
+     * (almost) exactly between two centroids.
+     *
+     * @param floatKernel
+     */
+    public void setFloatKernel(boolean floatKernel) {
+        this.floatKernel = floatKernel;
+    }
+
+    /**
+     * use mini-batch K-Means in the flat engine: every iteration samples batchSize instances and moves their centroids
+     * with a per-centroid learning rate, and a final full pass assigns all the instances (so quantize and calcAvgWSSSE
+     * work as usual). Costs numIterations * batchSize distance rows instead of a full pass per iteration.
+     *
+     * @param batchSize     number of instances sampled per iteration (0 = use the full batch algorithm)
+     * @param numIterations number of mini-batches
+     */
+    public void setMiniBatch(int batchSize, int numIterations) {
+        this.miniBatchSize = batchSize;
+        this.miniBatchIterations = numIterations;
+    }
+
+    /**
+     * cluster the distinct colors of the image instances, weighted by the number of pixels of each color, instead of
+     * every pixel. Needs the flat engine and ARGB instances (Hw7Main.convertImgToInstances). With uniform seeding the
+     * model is the same as the per-pixel one (an empty cluster repair moves a whole color instead of a single pixel),
+     * and quantize looks the centroids up by color.
+     *
+     * @param useColorHistogram
+     */
+    public void setUseColorHistogram(boolean useColorHistogram) {
+        this.useColorHistogram = useColorHistogram;
+    }
+
+    /**
+     * set how initializeCentroids chooses the initial centroids (default uniform)
+     *
+     * @param seeding
+     */
+    public void setSeeding(Seeding seeding) {
+        this.seeding = seeding;
+    }
+
+    /**
+     * set the seed of the random generator used to choose the initial centroids (default 12345)
+     *
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * set the hard cap on the number of iterations of a clustering run (default 40)
+     *
+     * @param maxIterations
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * stop iterating once no centroid moves more than the given euclidean distance (<= 0 disables it)
+     *
+     * @param centroidShiftTolerance
+     */
+    public void setCentroidShiftTolerance(double centroidShiftTolerance) {
+        this.centroidShiftTolerance = centroidShiftTolerance;
+    }
+
+    /**
+     * stop iterating once the relative improvement of the WSSSE between two iterations drops below the given
+     * threshold (<= 0 disables it)
+     *
+     * @param wssseImprovementThreshold
+     */
+    public void setWssseImprovementThreshold(double wssseImprovementThreshold) {
+        this.wssseImprovementThreshold = wssseImprovementThreshold;
+    }
+
+    public int getIterationsRun() {
+        return iterationsRun;
+    }
+
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * @return the number of empty clusters repaired by the last buildClusterModel
+     */
+    public int getRepairCount() {
+        return repairCount;
+    }
+
+    /**
+     * @return the centroid of every point the engine clustered - the distinct colors in color histogram mode
+     */
+    int[] getPointAlloc() {
+        return (colorHistogram != null) ? colorAlloc : centroidAlloc;
+    }
+
     public int[] getCentroidAlloc() {
         return centroidAlloc;
     }
 
+    /**
+     * @return the centroids of the last model - the class value (if the instances have a class) of every centroid is
+     * missing
+     */
     public Instances getCentroidInstances() {
         return centroidInstances;
     }
 
     public void setCentroidAlloc(int[] centroidAlloc) {
         this.centroidAlloc = centroidAlloc;
+        //an explicit allocation replaces the color lookup table of the last model
+        this.colorHistogram = null;
     }
 
     public void setCentroidInstances(Instances centroidInstances) {
         this.centroidInstances = centroidInstances;
+        this.colorHistogram = null;
     }
 }
@@ -0,0 +1,974 @@
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Primitive K-Means engine used by KMeans.buildClusterModel.
+ * The instances are copied once into a contiguous row-major double array (instance i, attribute j is found at
+ * points[i * numAttributes + j]) and the assignment and update steps run directly over primitive arrays, so the
+ * inner loops never touch weka Instance objects.
+ * Points can carry an integer weight (e.g. the number of pixels of a distinct color, see ColorHistogram) - a point of
+ * weight w counts as w identical points in the mean update, the counts and the error.
+ * <p>
+ * The points are split into fixed size chunks. Every chunk is assigned on its own and builds partial sums and counts
+ * for the centroid means, and the partials are merged in chunk order at the end of the iteration. Since the chunks do
+ * not depend on the number of threads the result is the same for any parallelism level.
+ * <p>
+ * In accelerated mode the assignment step keeps, for every point, an upper bound on the distance to its centroid and a
+ * lower bound on the distance to any other centroid (Hamerly's algorithm). The bounds are moved by how far the
+ * centroids moved, and a point whose bounds (together with half the distance between its centroid and the nearest
+ * other centroid) prove it keeps its centroid is skipped without computing any distance.
+ * <p>
+ * The per chunk partials, the tasks assigning the chunks on the worker threads and the other work buffers are kept in
+ * the engine and only grow, so after the first iteration the iterations allocate nothing (in parallel, only the
+ * executor's own queue entries), and a run over the same engine with the same (or a smaller) K reuses them as well.
+ * Without an executor from setExecutor a parallel run starts its own thread pool - callers running many models (e.g. a
+ * K sweep) should pass one in.
+ * <p>
+ * With the float kernel the full assignment passes go through a DistanceKernel - the points are copied once more into
+ * float32 planes and every chunk is assigned in SIMD friendly blocks.
+ */
+public class KMeansEngine {
+
+    //number of points in a chunk - fixed so the merge order does not depend on the number of threads
+    private static final int CHUNK_SIZE = 16384;
+    //attributes summed between two early exit checks of the high dimensional distance loop
+    private static final int ATTRIBUTE_BLOCK = 8;
+
+    private final double[] points;
+    private final int numInstances;
+    private final int numAttributes;
+    //the instance attribute of every engine attribute (null = same index)
+    private final int[] attributes;
+    //weight of every point (null = every point has weight 1)
+    private final int[] weights;
+    private int parallelism = 1;
+    //worker threads given by the caller (kept across runs and never shut down here), null = a pool per parallel run
+    private ExecutorService executor;
+
+    //stopping criteria - maxIterations is a hard cap, a criterion <= 0 is disabled
+    private int maxIterations = 40;
+    private double shiftTolerance = 0;
+    private double wssseThreshold = 0;
+
+    //triangle inequality accelerated assignment (Hamerly) - bounds on the euclidean distances of every point
+    private boolean accelerated = false;
+    private double[] upperBounds;
+    private double[] lowerBounds;
+    private boolean boundsValid;
+    //distance from every centroid to the nearest other centroid
+    private double[] centroidSeparation;
+    //how far every centroid moved in the last update, and the largest two moves
+    private double[] centroidMoves;
+    private double maxMove;
+    private double secondMaxMove;
+    private int maxMoveIndex;
+
+    //batched float32 assignment (built the first time an engine over these points uses it, shared by all of them)
+    private boolean floatKernel = false;
+    private final SharedKernel sharedKernel;
+    private DistanceKernel kernel;
+    private float[] floatCentroids;
+
+    //work buffers reused across iterations and runs - per chunk partial sums and counts, and the merged sums
+    private Partial[] partials;
+    private double[] centroidMeans;
+    //the task of every chunk for the worker threads (created with the partials), the arguments of the current
+    //assignment pass they read, a permit released by every finished task and the failure of a task (if any)
+    private ChunkTask[] chunkTasks;
+    private double[] passCentroids;
+    private float[] passFloatCentroids;
+    private int passK;
+    private int[] passCentroidAlloc;
+    private boolean passWithError;
+    private boolean passBounded;
+    private final Semaphore chunksDone = new Semaphore(0);
+    private volatile Throwable chunkFailure;
+
+    //how the last run of findKMeansCentroids ended
+    private int iterationsRun;
+    private KMeans.StopReason stopReason;
+    private int repairCount;
+
+    /**
+     * copy the instances into a flat row-major array - every attribute but the class
+     *
+     * @param instances
+     */
+    public KMeansEngine(Instances instances) {
+        this.numInstances = instances.numInstances();
+        int classIndex = instances.classIndex();
+        this.numAttributes = instances.numAttributes() - (classIndex >= 0 ? 1 : 0);
+        this.attributes = new int[numAttributes];
+        for (int a = 0, j = 0; a < instances.numAttributes(); a++) {
+            if (a != classIndex) {
+                attributes[j++] = a;
+            }
+        }
+        this.points = new double[numInstances * numAttributes];
+
+        for (int i = 0; i < numInstances; i++) {
+            Instance instance = instances.instance(i);
+            int offset = i * numAttributes;
+            for (int j = 0; j < numAttributes; j++) {
+                points[offset + j] = instance.value(attributes[j]);
+            }
+        }
+        this.weights = null;
+        this.sharedKernel = new SharedKernel();
+    }
+
+    /**
+     * an engine over points which are already flat (row-major)
+     *
+     * @param points        the points, instance i attribute j at points[i * numAttributes + j]
+     * @param numInstances
+     * @param numAttributes
+     * @param weights       weight of every point, null = every point has weight 1
+     */
+    public KMeansEngine(double[] points, int numInstances, int numAttributes, int[] weights) {
+        this.points = points;
+        this.numInstances = numInstances;
+        this.numAttributes = numAttributes;
+        this.weights = weights;
+        this.attributes = null;
+        this.sharedKernel = new SharedKernel();
+    }
+
+    /**
+     * an engine over the same points (and weights) as another engine, with its own iteration state. The points are
+     * only ever read, so engines sharing them can run at the same time on different threads. The float kernel's copy of
+     * the points is shared as well - built once by whichever engine uses it first.
+     *
+     * @param shared
+     */
+    public KMeansEngine(KMeansEngine shared) {
+        this.points = shared.points;
+        this.numInstances = shared.numInstances;
+        this.numAttributes = shared.numAttributes;
+        this.weights = shared.weights;
+        this.attributes = shared.attributes;
+        this.sharedKernel = shared.sharedKernel;
+    }
+
+    /**
+     * copy the points chosen as the initial centroids into a flat row-major array (same layout as the points)
+     *
+     * @param seeds indices of the points
+     * @return the centroids as a primitive array
+     */
+    public double[] seedCentroids(int[] seeds) {
+        double[] centroids = new double[seeds.length * numAttributes];
+
+        for (int i = 0; i < seeds.length; i++) {
+            System.arraycopy(points, seeds[i] * numAttributes, centroids, i * numAttributes, numAttributes);
+        }
+
+        return centroids;
+    }
+
+    /**
+     * write the flat centroids back into the centroid instances (only K * numAttributes setValue calls). The class
+     * attribute is not part of the points and is not written - it stays missing in new DenseInstance centroids, the
+     * same as in KMeans.findKMeansCentroids
+     *
+     * @param centroids
+     * @param centroidInstances
+     */
+    public void writeCentroids(double[] centroids, Instances centroidInstances) {
+        for (int i = 0; i < centroidInstances.numInstances(); i++) {
+            for (int j = 0; j < numAttributes; j++) {
+                int attribute = (attributes == null) ? j : attributes[j];
+                centroidInstances.instance(i).setValue(attribute, centroids[i * numAttributes + j]);
+            }
+        }
+    }
+
+    /**
+     * run the K-Means iterations over the primitive arrays. Same steps as KMeans.findKMeansCentroids - assign every
+     * point to its closest centroid, then replace every centroid by the mean of the points assigned to it.
+     * Stops after maxIterations, or earlier as soon as one of the enabled stopping criteria is met.
+     *
+     * @param centroids             the K centroids (row-major), updated in place
+     * @param k                     number of centroids
+     * @param centroidAlloc         output - the centroid each point is assigned to
+     * @param instanceCountCentroid output - the number of points assigned to each centroid
+     */
+    public void findKMeansCentroids(final double[] centroids, final int k, final int[] centroidAlloc,
+                                    int[] instanceCountCentroid) {
+        checkNotEmpty();
+        Partial[] partials = partials(k);
+        int numChunks = partials.length;
+        int size = k * numAttributes;
+        if (centroidMeans == null || centroidMeans.length < size) {
+            centroidMeans = new double[size];
+        }
+        double previousError = Double.NaN;
+
+        iterationsRun = 0;
+        repairCount = 0;
+        stopReason = KMeans.StopReason.MAX_ITERATIONS;
+
+        if (accelerated) {
+            if (upperBounds == null) {
+                upperBounds = new double[numInstances];
+                lowerBounds = new double[numInstances];
+            }
+            if (centroidSeparation == null || centroidSeparation.length < k) {
+                centroidSeparation = new double[k];
+                centroidMoves = new double[k];
+            }
+            boundsValid = false;
+        }
+
+        ExecutorService pool = workers();
+
+        try {
+            for (int itr = 0; itr < maxIterations; itr++) {
+                //the error is only needed by the WSSSE criterion
+                final boolean withError = wssseThreshold > 0;
+                //bounds are no use while a centroid is empty (NaN) - fall back to the brute force assignment
+                final boolean bounded = accelerated && !hasNaN(centroids);
+                if (bounded) {
+                    computeCentroidSeparation(centroids, k);
+                }
+
+                //assignment step - every chunk assigns its points and builds its own partial sums and counts
+                assignAll(pool, partials, centroids, kernelCentroids(centroids, bounded), k, centroidAlloc,
+                        withError, bounded);
+
+                //merge the partials in chunk order
+                Arrays.fill(instanceCountCentroid, 0);
+                Arrays.fill(centroidMeans, 0, size, 0);
+                long changed = 0;
+                double error = 0;
+                for (int c = 0; c < numChunks; c++) {
+                    for (int i = 0; i < k; i++) {
+                        instanceCountCentroid[i] += partials[c].counts[i];
+                    }
+                    for (int i = 0; i < size; i++) {
+                        centroidMeans[i] += partials[c].means[i];
+                    }
+                    changed += partials[c].changed;
+                    error += partials[c].error;
+                }
+
+                //the bounds are set for every point by the first bounded pass, and moved along from then on
+                boundsValid = bounded;
+
+                //re-seed the empty centroids before the update step - a repaired point changes its centroid, so
+                //the bounds have to be recomputed
+                int repairs = repairEmptyClusters(centroids, k, centroidAlloc, instanceCountCentroid, centroidMeans);
+                if (repairs > 0) {
+                    repairCount += repairs;
+                    changed += repairs;
+                    boundsValid = false;
+                }
+
+                //update step - divide by the number of points associated with each centroid, and keep track of
+                //how far the centroids moved
+                double maxShift = 0;
+                maxMove = 0;
+                secondMaxMove = 0;
+                maxMoveIndex = -1;
+                for (int i = 0; i < k; i++) {
+                    double shift = 0;
+                    for (int j = 0; j < numAttributes; j++) {
+                        double mean = centroidMeans[i * numAttributes + j] / instanceCountCentroid[i];
+                        double diff = mean - centroids[i * numAttributes + j];
+                        shift += diff * diff;
+                        centroids[i * numAttributes + j] = mean;
+                    }
+                    maxShift = Math.max(maxShift, Math.sqrt(shift));
+                    if (accelerated) {
+                        recordMove(i, Math.sqrt(shift));
+                    }
+                }
+
+                iterationsRun++;
+
+                //the first iteration always counts as a change - there is no previous assignment to compare to
+                if (itr > 0 && changed == 0) {
+                    //the centroids are a fixed point from here on - more iterations would not change anything
+                    stopReason = KMeans.StopReason.NO_CHANGE;
+                    break;
+                }
+                if (maxShift < shiftTolerance) {
+                    stopReason = KMeans.StopReason.CENTROID_SHIFT;
+                    break;
+                }
+                if (withError && previousError > 0 && (previousError - error) / previousError < wssseThreshold) {
+                    stopReason = KMeans.StopReason.WSSSE_IMPROVEMENT;
+                    break;
+                }
+                previousError = error;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("K-Means iteration interrupted", e);
+        } finally {
+            releaseWorkers(pool);
+        }
+    }
+
+    /**
+     * give every empty centroid the point with the largest current error (distance to its centroid) - the point is
+     * moved out of its cluster into the empty one, so the sums and counts stay consistent. Points are only taken from
+     * clusters with more than one point so no new empty cluster is made.
+     *
+     * @param centroids
+     * @param k
+     * @param centroidAlloc
+     * @param instanceCountCentroid
+     * @param centroidMeans         sums of the centroid means (not divided yet)
+     * @return the number of repaired centroids
+     */
+    private int repairEmptyClusters(double[] centroids, int k, int[] centroidAlloc, int[] instanceCountCentroid,
+                                    double[] centroidMeans) {
+        int repairs = 0;
+
+        for (int c = 0; c < k; c++) {
+            if (instanceCountCentroid[c] != 0) {
+                continue;
+            }
+
+            //find the point furthest from its centroid
+            int farthest = -1;
+            double maxError = -1;
+            for (int i = 0; i < numInstances; i++) {
+                int assigned = centroidAlloc[i];
+                //the cluster must keep at least one instance after giving this point away
+                if (instanceCountCentroid[assigned] > weight(i)) {
+                    double error = squaredDistance(i * numAttributes, centroids, assigned * numAttributes);
+                    if (error > maxError) {
+                        maxError = error;
+                        farthest = i;
+                    }
+                }
+            }
+
+            //nothing left to take from
+            if (farthest < 0) {
+                break;
+            }
+
+            int from = centroidAlloc[farthest];
+            int weight = weight(farthest);
+            centroidAlloc[farthest] = c;
+            instanceCountCentroid[from] -= weight;
+            instanceCountCentroid[c] += weight;
+            for (int j = 0; j < numAttributes; j++) {
+                double value = weight * points[farthest * numAttributes + j];
+                centroidMeans[from * numAttributes + j] -= value;
+                centroidMeans[c * numAttributes + j] += value;
+            }
+            repairs++;
+        }
+
+        return repairs;
+    }
+
+    /**
+     * mini-batch K-Means - every iteration samples batchSize points, assigns them to their closest centroids and moves
+     * each centroid towards its points with a per-centroid learning rate of 1 / (number of points it has seen so far) -
+     * a weighted point counts as weight points seen and moves its centroid by weight / seen. A final full assignment
+     * pass then fills centroidAlloc and instanceCountCentroid.
+     *
+     * @param centroids             the K centroids (row-major), updated in place
+     * @param k                     number of centroids
+     * @param centroidAlloc         output - the centroid each point is assigned to
+     * @param instanceCountCentroid output - the number of points assigned to each centroid
+     * @param batchSize             number of points sampled in every iteration
+     * @param numIterations         number of mini-batches
+     * @param rand                  source of the samples
+     */
+    public void miniBatchKMeans(final double[] centroids, final int k, final int[] centroidAlloc,
+                                int[] instanceCountCentroid, int batchSize, int numIterations, Random rand) {
+        checkNotEmpty();
+        long[] seen = new long[k];
+        int[] batch = new int[batchSize];
+        int[] batchAlloc = new int[batchSize];
+
+        for (int itr = 0; itr < numIterations; itr++) {
+            //sample the batch and assign it against the centroids of the previous iteration
+            for (int b = 0; b < batchSize; b++) {
+                batch[b] = rand.nextInt(numInstances);
+                batchAlloc[b] = findClosestCentroid(batch[b] * numAttributes, centroids, k);
+            }
+
+            //gradient step - move every centroid towards the points assigned to it
+            for (int b = 0; b < batchSize; b++) {
+                int c = batchAlloc[b];
+                seen[c] += weight(batch[b]);
+                double learningRate = (double) weight(batch[b]) / seen[c];
+                int offset = batch[b] * numAttributes;
+                for (int j = 0; j < numAttributes; j++) {
+                    int index = c * numAttributes + j;
+                    centroids[index] += learningRate * (points[offset + j] - centroids[index]);
+                }
+            }
+        }
+
+        iterationsRun = numIterations;
+        repairCount = 0;
+        stopReason = KMeans.StopReason.MAX_ITERATIONS;
+
+        //final full assignment pass
+        Partial[] partials = partials(k);
+        int numChunks = partials.length;
+
+        ExecutorService pool = workers();
+        try {
+            assignAll(pool, partials, centroids, kernelCentroids(centroids, false), k, centroidAlloc, false, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("K-Means assignment interrupted", e);
+        } finally {
+            releaseWorkers(pool);
+        }
+
+        Arrays.fill(instanceCountCentroid, 0);
+        for (int c = 0; c < numChunks; c++) {
+            for (int i = 0; i < k; i++) {
+                instanceCountCentroid[i] += partials[c].counts[i];
+            }
+        }
+    }
+
+    /**
+     * the centroids rounded for the float kernel, or null if this pass does not use the kernel (kernel disabled, or a
+     * bounded pass - the bounds need the double precision distances)
+     */
+    private float[] kernelCentroids(double[] centroids, boolean bounded) {
+        if (!floatKernel || bounded) {
+            return null;
+        }
+        if (kernel == null) {
+            kernel = sharedKernel.get(points, numInstances, numAttributes);
+        }
+        if (floatCentroids == null || floatCentroids.length < centroids.length) {
+            floatCentroids = new float[centroids.length];
+        }
+        DistanceKernel.toFloat(centroids, floatCentroids);
+        return floatCentroids;
+    }
+
+    /**
+     * the iterations need at least one chunk of points to reduce
+     */
+    private void checkNotEmpty() {
+        if (numInstances == 0) {
+            throw new IllegalArgumentException("K-Means needs at least one point, the engine has none");
+        }
+    }
+
+    /**
+     * the per chunk partials, big enough for k centroids (reallocated only when k grows)
+     */
+    private Partial[] partials(int k) {
+        if (partials == null || partials[0].counts.length < k) {
+            int numChunks = (numInstances + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            partials = new Partial[numChunks];
+            chunkTasks = new ChunkTask[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                partials[c] = new Partial(k, numAttributes);
+                chunkTasks[c] = new ChunkTask(c);
+            }
+        }
+        return partials;
+    }
+
+    /**
+     * the worker threads of a run - the executor of setExecutor, a new pool, or null to run in the calling thread
+     */
+    private ExecutorService workers() {
+        if (parallelism <= 1) {
+            return null;
+        }
+        return (executor != null) ? executor : Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * shut down the pool of a run, unless it is the executor given by the caller
+     */
+    private void releaseWorkers(ExecutorService pool) {
+        if (pool != null && pool != executor) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * assign all the points, chunk by chunk - in the calling thread, or on the pool if there is one. The chunk tasks
+     * are created once with the partials, so a parallel pass only hands them the arguments of the pass.
+     */
+    private void assignAll(ExecutorService pool, Partial[] partials, double[] centroids, float[] floatCentroids,
+                           int k, int[] centroidAlloc, boolean withError, boolean bounded)
+            throws InterruptedException {
+        if (pool == null) {
+            for (int c = 0; c < partials.length; c++) {
+                assignChunk(c, centroids, floatCentroids, k, centroidAlloc, partials[c], withError, bounded);
+            }
+            return;
+        }
+
+        //the tasks see these writes - submitting a task to an executor happens before it runs
+        passCentroids = centroids;
+        passFloatCentroids = floatCentroids;
+        passK = k;
+        passCentroidAlloc = centroidAlloc;
+        passWithError = withError;
+        passBounded = bounded;
+        chunkFailure = null;
+        for (ChunkTask task : chunkTasks) {
+            pool.execute(task);
+        }
+        //and the partials written by the tasks are seen here - every task releases a permit once it is done
+        chunksDone.acquire(chunkTasks.length);
+        if (chunkFailure != null) {
+            throw new RuntimeException("K-Means worker failed", chunkFailure);
+        }
+    }
+
+    /**
+     * assign the points of one chunk to their closest centroids and accumulate the chunk's partial sums and counts
+     *
+     * @param chunk
+     * @param centroids
+     * @param k
+     * @param centroidAlloc
+     * @param partial       output - the chunk's partial sums, counts, changed assignments and error
+     * @param withError     whether to accumulate the error of the chunk
+     * @param bounded       whether to use the triangle inequality bounds
+     */
+    private void assignChunk(int chunk, double[] centroids, float[] floatCentroids, int k, int[] centroidAlloc,
+                             Partial partial, boolean withError, boolean bounded) {
+        double[] means = partial.means;
+        int[] counts = partial.counts;
+        Arrays.fill(means, 0, k * numAttributes, 0);
+        Arrays.fill(counts, 0, k, 0);
+        int changed = 0;
+        double error = 0;
+
+        int start = chunk * CHUNK_SIZE;
+        int end = Math.min(numInstances, (chunk + 1) * CHUNK_SIZE);
+        //batched float32 assignment of the whole chunk
+        if (floatCentroids != null) {
+            if (partial.closest == null) {
+                partial.closest = new int[CHUNK_SIZE];
+                partial.kernelScratch = kernel.newScratch();
+            }
+            kernel.assign(start, end, floatCentroids, k, partial.closest, partial.kernelScratch);
+        }
+
+        for (int i = start; i < end; i++) {
+            int offset = i * numAttributes;
+            int closest;
+            if (floatCentroids != null) {
+                closest = partial.closest[i - start];
+            } else if (!bounded) {
+                closest = findClosestCentroid(offset, centroids, k);
+            } else if (!boundsValid) {
+                closest = assignWithBounds(i, offset, centroids, k);
+            } else {
+                closest = updateBounded(i, offset, centroids, k, centroidAlloc[i]);
+            }
+            if (centroidAlloc[i] != closest) {
+                changed++;
+            }
+            centroidAlloc[i] = closest;
+            int weight = weight(i);
+            counts[closest] += weight;
+
+            int meanOffset = closest * numAttributes;
+            for (int j = 0; j < numAttributes; j++) {
+                means[meanOffset + j] += weight * points[offset + j];
+            }
+
+            if (withError) {
+                error += weight * Math.sqrt(squaredDistance(offset, centroids, meanOffset));
+            }
+        }
+
+        partial.changed = changed;
+        partial.error = error;
+    }
+
+    /**
+     * move the bounds of a point by how far the centroids moved, and only look for a new centroid if the bounds can
+     * no longer prove that the point keeps its current one
+     *
+     * @param i        index of the point
+     * @param offset   offset of the point within the points array
+     * @param centroids
+     * @param k
+     * @param assigned the centroid the point is currently assigned to
+     * @return the index of the closest centroid
+     */
+    private int updateBounded(int i, int offset, double[] centroids, int k, int assigned) {
+        double upper = upperBounds[i] + centroidMoves[assigned];
+        double lower = lowerBounds[i] - (assigned == maxMoveIndex ? secondMaxMove : maxMove);
+        upperBounds[i] = upper;
+        lowerBounds[i] = lower;
+
+        if (provesAssignment(upper, Math.max(lower, centroidSeparation[assigned] - upper))) {
+            return assigned;
+        }
+
+        //tighten the upper bound and try again
+        upper = Math.sqrt(squaredDistance(offset, centroids, assigned * numAttributes));
+        upperBounds[i] = upper;
+        if (provesAssignment(upper, Math.max(lower, centroidSeparation[assigned] - upper))) {
+            return assigned;
+        }
+
+        return assignWithBounds(i, offset, centroids, k);
+    }
+
+    /**
+     * the bounds prove the assignment if every other centroid is strictly further away than the assigned one (a tie
+     * goes to the first centroid in findClosestCentroid, so it is never proved). A little slack covers the rounding of
+     * the bounds.
+     *
+     * @param upper upper bound on the euclidean distance to the assigned centroid
+     * @param lower lower bound on the euclidean distance to any other centroid
+     * @return true if the point keeps its centroid
+     */
+    private boolean provesAssignment(double upper, double lower) {
+        return upper * (1 + 1e-9) < lower;
+    }
+
+    /**
+     * brute force assignment of a point which also resets its bounds - the upper bound to the distance to the chosen
+     * centroid and the lower bound to the distance to the nearest other centroid
+     *
+     * @param i         index of the point
+     * @param offset    offset of the point within the points array
+     * @param centroids
+     * @param k
+     * @return the index of the closest centroid
+     */
+    private int assignWithBounds(int i, int offset, double[] centroids, int k) {
+        //nearest and second nearest centroid
+        double nearest = Double.MAX_VALUE;
+        double secondNearest = Double.MAX_VALUE;
+        int closest = 0;
+
+        for (int c = 0; c < k; c++) {
+            double curDist = squaredDistance(offset, centroids, c * numAttributes);
+            if (curDist < nearest) {
+                secondNearest = nearest;
+                nearest = curDist;
+                closest = c;
+            } else if (curDist < secondNearest) {
+                secondNearest = curDist;
+            }
+        }
+
+        upperBounds[i] = Math.sqrt(nearest);
+        lowerBounds[i] = Math.sqrt(secondNearest);
+
+        return closest;
+    }
+
+    /**
+     * distance from every centroid to the nearest other centroid (K^2 / 2 distances, computed once per iteration)
+     */
+    private void computeCentroidSeparation(double[] centroids, int k) {
+        Arrays.fill(centroidSeparation, 0, k, Double.POSITIVE_INFINITY);
+        for (int a = 0; a < k; a++) {
+            for (int b = a + 1; b < k; b++) {
+                double dist = 0;
+                for (int j = 0; j < numAttributes; j++) {
+                    double diff = centroids[a * numAttributes + j] - centroids[b * numAttributes + j];
+                    dist += diff * diff;
+                }
+                dist = Math.sqrt(dist);
+                centroidSeparation[a] = Math.min(centroidSeparation[a], dist);
+                centroidSeparation[b] = Math.min(centroidSeparation[b], dist);
+            }
+        }
+    }
+
+    /**
+     * keep how far a centroid moved, and the largest two moves (used to move the lower bounds)
+     */
+    private void recordMove(int centroid, double move) {
+        centroidMoves[centroid] = move;
+        if (move > maxMove) {
+            secondMaxMove = maxMove;
+            maxMove = move;
+            maxMoveIndex = centroid;
+        } else if (move > secondMaxMove) {
+            secondMaxMove = move;
+        }
+    }
+
+    private static boolean hasNaN(double[] values) {
+        for (double value : values) {
+            if (Double.isNaN(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * calculate which centroid is closest to the point starting at the given offset
+     *
+     * @param offset    offset of the point within the points array
+     * @param centroids
+     * @param k
+     * @return the index of the closest centroid
+     */
+    public int findClosestCentroid(int offset, double[] centroids, int k) {
+        //ARGB / RGB pixels (or 3-4 principal components) - the point is kept in registers and the distance loop is
+        //unrolled
+        if (numAttributes == 4) {
+            return findClosestCentroid4(offset, centroids, k);
+        }
+        if (numAttributes == 3) {
+            return findClosestCentroid3(offset, centroids, k);
+        }
+
+        return findClosestCentroidBlocked(offset, centroids, k);
+    }
+
+    private int findClosestCentroid3(int offset, double[] centroids, int k) {
+        double x = points[offset];
+        double y = points[offset + 1];
+        double z = points[offset + 2];
+
+        double minDist = Double.MAX_VALUE;
+        int closestIndex = 0;
+
+        for (int i = 0, c = 0; i < k; i++, c += 3) {
+            double d0 = x - centroids[c];
+            double d1 = y - centroids[c + 1];
+            double d2 = z - centroids[c + 2];
+            double curDist = d0 * d0 + d1 * d1 + d2 * d2;
+            if (curDist < minDist) {
+                minDist = curDist;
+                closestIndex = i;
+            }
+        }
+
+        return closestIndex;
+    }
+
+    /**
+     * any number of attributes - the distance is summed a block of attributes at a time, and a centroid is dropped as
+     * soon as its partial sum reaches the closest distance so far (the sum only grows, so it can not win anymore).
+     * With many attributes most centroids are dropped after the first blocks.
+     */
+    private int findClosestCentroidBlocked(int offset, double[] centroids, int k) {
+        double minDist = Double.MAX_VALUE;
+        int closestIndex = 0;
+
+        for (int i = 0; i < k; i++) {
+            int centroidOffset = i * numAttributes;
+            double curDist = 0;
+            for (int block = 0; block < numAttributes && curDist < minDist; block += ATTRIBUTE_BLOCK) {
+                int blockEnd = Math.min(numAttributes, block + ATTRIBUTE_BLOCK);
+                for (int j = block; j < blockEnd; j++) {
+                    double diff = points[offset + j] - centroids[centroidOffset + j];
+                    curDist += diff * diff;
+                }
+            }
+            if (curDist < minDist) {
+                minDist = curDist;
+                closestIndex = i;
+            }
+        }
+
+        return closestIndex;
+    }
+
+    private int findClosestCentroid4(int offset, double[] centroids, int k) {
+        double alpha = points[offset];
+        double red = points[offset + 1];
+        double green = points[offset + 2];
+        double blue = points[offset + 3];
+
+        double minDist = Double.MAX_VALUE;
+        int closestIndex = 0;
+
+        for (int i = 0, c = 0; i < k; i++, c += 4) {
+            double d0 = alpha - centroids[c];
+            double d1 = red - centroids[c + 1];
+            double d2 = green - centroids[c + 2];
+            double d3 = blue - centroids[c + 3];
+            double curDist = d0 * d0 + d1 * d1 + d2 * d2 + d3 * d3;
+            if (curDist < minDist) {
+                minDist = curDist;
+                closestIndex = i;
+            }
+        }
+
+        return closestIndex;
+    }
+
+    /**
+     * squared euclidean distance between a point and a centroid, same as KMeans.calcSquaredDistance. The square root
+     * is left out since it does not change which centroid is the closest.
+     *
+     * @param offset         offset of the point within the points array
+     * @param centroids
+     * @param centroidOffset offset of the centroid within the centroids array
+     * @return
+     */
+    private double squaredDistance(int offset, double[] centroids, int centroidOffset) {
+        double dist = 0;
+
+        for (int j = 0; j < numAttributes; j++) {
+            double diff = points[offset + j] - centroids[centroidOffset + j];
+            dist += diff * diff;
+        }
+
+        return dist;
+    }
+
+    /**
+     * set the number of worker threads used for the assignment step (1 = run in the calling thread)
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * set the threads the parallel assignment runs on (with a parallelism above 1), so several runs - of this or of
+     * other engines - share one pool instead of starting a pool per run. The engine never shuts it down. The executor
+     * must not be busy with the caller's own task (e.g. a K sweep's pool running this very model), or it deadlocks.
+     *
+     * @param executor the worker threads, null to start a pool per parallel run
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * set the stopping criteria of findKMeansCentroids
+     *
+     * @param maxIterations  hard cap on the number of iterations
+     * @param shiftTolerance stop once no centroid moves more than this (euclidean distance), <= 0 disables it
+     * @param wssseThreshold stop once the relative improvement of the WSSSE drops below this, <= 0 disables it
+     */
+    public void setStoppingCriteria(int maxIterations, double shiftTolerance, double wssseThreshold) {
+        this.maxIterations = maxIterations;
+        this.shiftTolerance = shiftTolerance;
+        this.wssseThreshold = wssseThreshold;
+    }
+
+    public int getIterationsRun() {
+        return iterationsRun;
+    }
+
+    public KMeans.StopReason getStopReason() {
+        return stopReason;
+    }
+
+    public int getRepairCount() {
+        return repairCount;
+    }
+
+    /**
+     * use the triangle inequality bounds to skip distance computations in the assignment step - the clustering is
+     * the same as with the brute force assignment
+     *
+     * @param accelerated
+     */
+    public void setAccelerated(boolean accelerated) {
+        this.accelerated = accelerated;
+    }
+
+    /**
+     * use the batched float32 DistanceKernel for the full (not bounded) assignment passes. The kernel computes the
+     * squared distances in float32, so an assignment can differ from the double precision one on (near) ties.
+     *
+     * @param floatKernel
+     */
+    public void setFloatKernel(boolean floatKernel) {
+        this.floatKernel = floatKernel;
+    }
+
+    double[] getPoints() {
+        return points;
+    }
+
+    int[] getWeights() {
+        return weights;
+    }
+
+    private int weight(int i) {
+        return weights == null ? 1 : weights[i];
+    }
+
+    public int getNumInstances() {
+        return numInstances;
+    }
+
+    public int getNumAttributes() {
+        return numAttributes;
+    }
+
+    /**
+     * assigns one chunk with the arguments of the current pass (see assignAll) - reused by every parallel pass
+     */
+    private class ChunkTask implements Runnable {
+        private final int chunk;
+
+        ChunkTask(int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void run() {
+            try {
+                assignChunk(chunk, passCentroids, passFloatCentroids, passK, passCentroidAlloc, partials[chunk],
+                        passWithError, passBounded);
+            } catch (Throwable t) {
+                chunkFailure = t;
+            } finally {
+                chunksDone.release();
+            }
+        }
+    }
+
+    /**
+     * per chunk results of the assignment step, merged in chunk order by findKMeansCentroids
+     */
+    private static class Partial {
+        final double[] means;
+        final int[] counts;
+        int changed;
+        double error;
+        //closest centroid of every point of the chunk, filled by the float kernel, and the kernel's work space
+        int[] closest;
+        float[] kernelScratch;
+
+        Partial(int k, int numAttributes) {
+            means = new double[k * numAttributes];
+            counts = new int[k];
+        }
+    }
+
+    /**
+     * the DistanceKernel of the points, shared by every engine created from the same one (it is only read once built)
+     */
+    private static class SharedKernel {
+        private DistanceKernel kernel;
+
+        synchronized DistanceKernel get(double[] points, int numInstances, int numAttributes) {
+            if (kernel == null) {
+                kernel = new DistanceKernel(points, numInstances, numAttributes);
+            }
+            return kernel;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Seeding strategies for the initial K-Means centroids. Every strategy works on the flat row-major points of a
+ * KMeansEngine and returns the indices of the points chosen as the initial centroids.
+ */
+public class KMeansSeeding {
+
+    //k-means|| runs on a uniform sample of the points - enough to seed the centroids of a multi-megapixel image
+    private static final int PARALLEL_SAMPLE_SIZE = 16384;
+    //number of oversampling rounds of k-means|| and the expected number of candidates picked per round (times K)
+    private static final int PARALLEL_ROUNDS = 5;
+    private static final double PARALLEL_OVERSAMPLING = 2.0;
+    //2-means iterations used to bisect a cluster in warm start
+    private static final int BISECT_ITERATIONS = 10;
+
+    private final double[] points;
+    private final int numInstances;
+    private final int numAttributes;
+    //weight of every point (null = all 1)
+    private final int[] pointWeights;
+
+    public KMeansSeeding(KMeansEngine engine) {
+        this.points = engine.getPoints();
+        this.numInstances = engine.getNumInstances();
+        this.numAttributes = engine.getNumAttributes();
+        this.pointWeights = engine.getWeights();
+    }
+
+    /**
+     * pick K distinct random points - the original KMeans.initializeCentroids behaviour
+     *
+     * @param numInstances
+     * @param k
+     * @param rand
+     * @return the indices of the initial centroids
+     */
+    public static int[] uniform(int numInstances, int k, Random rand) {
+        //As we're adding to a set, this will automatically do a containment check - no duplicates
+        Set<Integer> generated = new LinkedHashSet<Integer>();
+        while (generated.size() < k) {
+            generated.add(rand.nextInt(numInstances));
+        }
+
+        int[] seeds = new int[k];
+        int i = 0;
+        for (Integer seed : generated) {
+            seeds[i++] = seed;
+        }
+        return seeds;
+    }
+
+    /**
+     * k-means++ - the first centroid is a uniform random point, every next one is a point picked with probability
+     * proportional to its (weighted) squared distance from the closest centroid chosen so far
+     *
+     * @param k
+     * @param rand
+     * @return the indices of the initial centroids
+     */
+    public int[] kMeansPlusPlus(int k, Random rand) {
+        int[] all = new int[numInstances];
+        double[] weights = (pointWeights == null) ? null : new double[numInstances];
+        for (int i = 0; i < numInstances; i++) {
+            all[i] = i;
+            if (weights != null) {
+                weights[i] = pointWeights[i];
+            }
+        }
+        return weightedKMeansPlusPlus(all, weights, k, rand);
+    }
+
+    /**
+     * k-means|| (scalable k-means++) over a uniform sample of the points. Every round oversamples about
+     * PARALLEL_OVERSAMPLING * K candidates, each point independently with probability proportional to its squared
+     * distance from the candidates so far. The candidates are then weighted by the number of sampled points closest
+     * to them (by the weight of the sampled points) and reduced to K centroids by a weighted k-means++.
+     *
+     * @param k
+     * @param rand
+     * @return the indices of the initial centroids
+     */
+    public int[] kMeansParallel(int k, Random rand) {
+        int[] sample = sample(Math.min(numInstances, PARALLEL_SAMPLE_SIZE), rand);
+        int m = sample.length;
+
+        int[] candidates = new int[4 * k + 16];
+        int numCandidates = 0;
+        candidates[numCandidates++] = sample[rand.nextInt(m)];
+
+        //squared distance of every sampled point to its closest candidate
+        double[] minDist = new double[m];
+        Arrays.fill(minDist, Double.POSITIVE_INFINITY);
+        int updatedFrom = 0;
+        double oversampling = PARALLEL_OVERSAMPLING * k;
+
+        for (int round = 0; round <= PARALLEL_ROUNDS; round++) {
+            //bring the distances up to date with the candidates picked in the last round
+            double cost = 0;
+            for (int i = 0; i < m; i++) {
+                for (int c = updatedFrom; c < numCandidates; c++) {
+                    minDist[i] = Math.min(minDist[i], squaredDistance(sample[i], candidates[c]));
+                }
+                cost += minDist[i];
+            }
+            updatedFrom = numCandidates;
+
+            if (round == PARALLEL_ROUNDS || cost == 0) {
+                break;
+            }
+
+            //oversample - every point is picked independently of the others
+            for (int i = 0; i < m; i++) {
+                if (rand.nextDouble() < oversampling * minDist[i] / cost) {
+                    if (numCandidates == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, 2 * numCandidates);
+                    }
+                    candidates[numCandidates++] = sample[i];
+                }
+            }
+        }
+
+        //weight every candidate by the number of sampled points closest to it
+        int[] candidateIndices = Arrays.copyOf(candidates, numCandidates);
+        double[] weights = new double[candidateIndices.length];
+        for (int i = 0; i < m; i++) {
+            double best = Double.POSITIVE_INFINITY;
+            int closest = 0;
+            for (int c = 0; c < candidateIndices.length; c++) {
+                double dist = squaredDistance(sample[i], candidateIndices[c]);
+                if (dist < best) {
+                    best = dist;
+                    closest = c;
+                }
+            }
+            weights[closest] += (pointWeights == null) ? 1 : pointWeights[sample[i]];
+        }
+
+        //not enough candidates (e.g. fewer distinct colors than K) - top up with random sampled points
+        if (candidateIndices.length < k) {
+            int[] padded = Arrays.copyOf(candidateIndices, k);
+            for (int c = candidateIndices.length; c < k; c++) {
+                padded[c] = sample[rand.nextInt(m)];
+            }
+            return padded;
+        }
+
+        return weightedKMeansPlusPlus(candidateIndices, weights, k, rand);
+    }
+
+    /**
+     * warm start - extend the centroids of a previous (smaller K) model to k centroids by bisecting its clusters, the
+     * cluster with the largest error first. A cluster is bisected by a 2-means over its own points, started from its
+     * centroid and its point furthest from the centroid, and both halves go back in line to be bisected again.
+     *
+     * @param previous      the centroids of the previous model (row-major)
+     * @param previousAlloc the centroid of every point in the previous model
+     * @param previousK     number of centroids of the previous model
+     * @param k             number of centroids to return, at least previousK
+     * @return the initial centroids (row-major)
+     */
+    public double[] bisect(double[] previous, int[] previousAlloc, int previousK, int k) {
+        //group the points by cluster
+        int[] start = new int[previousK + 1];
+        for (int i = 0; i < numInstances; i++) {
+            start[previousAlloc[i] + 1]++;
+        }
+        for (int c = 0; c < previousK; c++) {
+            start[c + 1] += start[c];
+        }
+        int[] members = new int[numInstances];
+        int[] next = Arrays.copyOf(start, previousK);
+        for (int i = 0; i < numInstances; i++) {
+            members[next[previousAlloc[i]]++] = i;
+        }
+
+        PriorityQueue<Cluster> queue = new PriorityQueue<Cluster>(k, new Comparator<Cluster>() {
+            @Override
+            public int compare(Cluster a, Cluster b) {
+                return Double.compare(b.error, a.error);
+            }
+        });
+        for (int c = 0; c < previousK; c++) {
+            double[] centroid = Arrays.copyOfRange(previous, c * numAttributes, (c + 1) * numAttributes);
+            int[] clusterMembers = Arrays.copyOfRange(members, start[c], start[c + 1]);
+            queue.add(new Cluster(centroid, clusterMembers, clusterError(centroid, clusterMembers)));
+        }
+
+        //clusters which can not be bisected (all their points are the same) are set aside
+        List<Cluster> done = new ArrayList<Cluster>(k);
+        while (queue.size() + done.size() < k && !queue.isEmpty()) {
+            Cluster cluster = queue.poll();
+            Cluster[] halves = (cluster.error > 0) ? bisect(cluster) : null;
+            if (halves == null) {
+                done.add(cluster);
+            } else {
+                queue.add(halves[0]);
+                queue.add(halves[1]);
+            }
+        }
+        done.addAll(queue);
+
+        double[] centroids = new double[k * numAttributes];
+        for (int c = 0; c < k; c++) {
+            //fewer distinct points than k - the extra centroids are left for the empty cluster repair
+            double[] centroid = done.get(Math.min(c, done.size() - 1)).centroid;
+            System.arraycopy(centroid, 0, centroids, c * numAttributes, numAttributes);
+        }
+        return centroids;
+    }
+
+    /**
+     * split a cluster in two with a 2-means over its points
+     *
+     * @return the two halves, or null if all the points ended up on one side
+     */
+    private Cluster[] bisect(Cluster cluster) {
+        int[] clusterMembers = cluster.members;
+
+        //start from the centroid and the point furthest from it
+        int farthest = clusterMembers[0];
+        double maxDist = -1;
+        for (int i : clusterMembers) {
+            double dist = squaredDistance(i, cluster.centroid);
+            if (dist > maxDist) {
+                maxDist = dist;
+                farthest = i;
+            }
+        }
+        double[][] centers = {cluster.centroid.clone(),
+                Arrays.copyOfRange(points, farthest * numAttributes, (farthest + 1) * numAttributes)};
+
+        boolean[] side = new boolean[clusterMembers.length];
+        for (int itr = 0; itr < BISECT_ITERATIONS; itr++) {
+            boolean changed = itr == 0;
+            double[][] sums = new double[2][numAttributes];
+            long[] counts = new long[2];
+            for (int m = 0; m < clusterMembers.length; m++) {
+                int i = clusterMembers[m];
+                boolean second = squaredDistance(i, centers[1]) < squaredDistance(i, centers[0]);
+                changed |= side[m] != second;
+                side[m] = second;
+                int half = second ? 1 : 0;
+                int weight = (pointWeights == null) ? 1 : pointWeights[i];
+                counts[half] += weight;
+                for (int j = 0; j < numAttributes; j++) {
+                    sums[half][j] += weight * points[i * numAttributes + j];
+                }
+            }
+            if (counts[0] == 0 || counts[1] == 0) {
+                return null;
+            }
+            for (int half = 0; half < 2; half++) {
+                for (int j = 0; j < numAttributes; j++) {
+                    centers[half][j] = sums[half][j] / counts[half];
+                }
+            }
+            if (!changed) {
+                break;
+            }
+        }
+
+        //split the members by the final side
+        int numSecond = 0;
+        for (boolean second : side) {
+            if (second) {
+                numSecond++;
+            }
+        }
+        int[][] halfMembers = {new int[clusterMembers.length - numSecond], new int[numSecond]};
+        int[] filled = new int[2];
+        for (int m = 0; m < clusterMembers.length; m++) {
+            int half = side[m] ? 1 : 0;
+            halfMembers[half][filled[half]++] = clusterMembers[m];
+        }
+
+        return new Cluster[]{
+                new Cluster(centers[0], halfMembers[0], clusterError(centers[0], halfMembers[0])),
+                new Cluster(centers[1], halfMembers[1], clusterError(centers[1], halfMembers[1]))};
+    }
+
+    /**
+     * weighted sum of the squared distances of the points of a cluster from its centroid
+     */
+    private double clusterError(double[] centroid, int[] clusterMembers) {
+        double error = 0;
+        for (int i : clusterMembers) {
+            error += ((pointWeights == null) ? 1 : pointWeights[i]) * squaredDistance(i, centroid);
+        }
+        return error;
+    }
+
+    /**
+     * a cluster waiting to be bisected
+     */
+    private static class Cluster {
+        final double[] centroid;
+        final int[] members;
+        final double error;
+
+        Cluster(double[] centroid, int[] members, double error) {
+            this.centroid = centroid;
+            this.members = members;
+            this.error = error;
+        }
+    }
+
+    /**
+     * k-means++ restricted to the given candidate points, where every candidate counts weight times
+     *
+     * @param candidates indices of the candidate points
+     * @param weights    weight of every candidate (null = all 1)
+     * @param k
+     * @param rand
+     * @return the indices of the chosen points
+     */
+    private int[] weightedKMeansPlusPlus(int[] candidates, double[] weights, int k, Random rand) {
+        int m = candidates.length;
+        int[] seeds = new int[k];
+        double[] minDist = new double[m];
+        Arrays.fill(minDist, Double.POSITIVE_INFINITY);
+
+        seeds[0] = candidates[pick(weights, null, m, rand)];
+        for (int s = 1; s < k; s++) {
+            //bring the distances up to date with the last chosen seed
+            for (int i = 0; i < m; i++) {
+                minDist[i] = Math.min(minDist[i], squaredDistance(candidates[i], seeds[s - 1]));
+            }
+            seeds[s] = candidates[pick(weights, minDist, m, rand)];
+        }
+
+        return seeds;
+    }
+
+    /**
+     * pick a random index with probability proportional to weight * distance (either may be null = all 1). Falls back
+     * to a uniform pick if every candidate has a zero distance.
+     */
+    private static int pick(double[] weights, double[] dist, int m, Random rand) {
+        double total = 0;
+        for (int i = 0; i < m; i++) {
+            total += (weights == null ? 1 : weights[i]) * (dist == null ? 1 : dist[i]);
+        }
+        if (total <= 0) {
+            return rand.nextInt(m);
+        }
+
+        double target = rand.nextDouble() * total;
+        double cumulative = 0;
+        int last = 0;
+        for (int i = 0; i < m; i++) {
+            double mass = (weights == null ? 1 : weights[i]) * (dist == null ? 1 : dist[i]);
+            if (mass > 0) {
+                cumulative += mass;
+                last = i;
+                if (cumulative > target) {
+                    return i;
+                }
+            }
+        }
+        //rounding - the target was past the last non-empty candidate
+        return last;
+    }
+
+    /**
+     * a uniform random sample of point indices (all the points if the sample size is the number of points)
+     */
+    private int[] sample(int size, Random rand) {
+        if (size == numInstances) {
+            int[] all = new int[numInstances];
+            for (int i = 0; i < numInstances; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        int[] sample = new int[size];
+        for (int i = 0; i < size; i++) {
+            sample[i] = rand.nextInt(numInstances);
+        }
+        return sample;
+    }
+
+    private double squaredDistance(int a, double[] centroid) {
+        double dist = 0;
+        int offset = a * numAttributes;
+
+        for (int j = 0; j < numAttributes; j++) {
+            double diff = points[offset + j] - centroid[j];
+            dist += diff * diff;
+        }
+
+        return dist;
+    }
+
+    private double squaredDistance(int a, int b) {
+        double dist = 0;
+        int offsetA = a * numAttributes;
+        int offsetB = b * numAttributes;
+
+        for (int j = 0; j < numAttributes; j++) {
+            double diff = points[offsetA + j] - points[offsetB + j];
+            dist += diff * diff;
+        }
+
+        return dist;
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a K-Means model for every K of a sweep, several K values at a time on a thread pool. All the models read the
+ * same copy of the pixels (or of the distinct colors in color histogram mode) - every model only gets its own iteration
+ * state. The error (calcAvgWSSSE) and the wall time of every K are kept, and the best model can be picked by the lowest
+ * error or by the elbow of the error curve.
+ * <p>
+ * In warm start mode the K values run one after the other, from the smallest up, and every K is seeded by bisecting
+ * the highest error clusters of the previous K (see KMeansSeeding.bisect). The threads then split the assignment step
+ * of every K instead. The seeds start every K with a low error, but most K values do not converge much sooner - on
+ * the baboon image K=10 to 100 still run to the iteration cap, cold or warm, and a K can end with a higher error than a
+ * cold start (warm K=10 30.80 against 30.02 cold), so the sweep is only a little faster than a cold one.
+ */
+public class KMeansSweep {
+
+    private final PixelBuffer pixels;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean useColorHistogram = false;
+    //seed every K from the centroids of the previous (smaller) K
+    private boolean warmStart = false;
+
+    //results of the last run, in the order of the K values
+    private List<Result> results;
+
+    /**
+     * the model, error and wall time of a single K
+     */
+    public static class Result {
+        private final int k;
+        private final KMeans model;
+        private final double error;
+        private final long millis;
+
+        public Result(int k, KMeans model, double error, long millis) {
+            this.k = k;
+            this.model = model;
+            this.error = error;
+            this.millis = millis;
+        }
+
+        public int getK() {
+            return k;
+        }
+
+        public KMeans getModel() {
+            return model;
+        }
+
+        public double getError() {
+            return error;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    public KMeansSweep(PixelBuffer pixels) {
+        this.pixels = pixels;
+    }
+
+    /**
+     * create the (not yet built) model of a K - override to configure the models (seeding, stopping criteria etc.)
+     *
+     * @param k
+     * @return the model
+     */
+    protected KMeans createModel(int k) {
+        KMeans model = new KMeans();
+        model.setK(k);
+        return model;
+    }
+
+    /**
+     * build and evaluate a model for every K. The largest K values are started first, since they take the longest.
+     *
+     * @param kValues
+     * @return the results, in the order of kValues
+     */
+    public List<Result> run(int[] kValues) {
+        //one read only copy of the points for all the models
+        final ColorHistogram histogram = useColorHistogram ? new ColorHistogram(pixels.getPixels()) : null;
+        final KMeansEngine shared = (histogram != null) ? histogram.toEngine() : pixels.toEngine();
+
+        if (warmStart) {
+            results = Collections.unmodifiableList(Arrays.asList(runWarm(kValues, shared, histogram)));
+            return results;
+        }
+
+        Integer[] order = new Integer[kValues.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final int[] ks = kValues.clone();
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return ks[b] - ks[a];
+            }
+        });
+
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(ks.length);
+        for (final Integer index : order) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    long start = System.nanoTime();
+                    KMeans model = createModel(ks[index]);
+                    model.buildClusterModel(new KMeansEngine(shared), histogram);
+                    double error = model.calcAvgWSSSE(pixels);
+                    return new Result(ks[index], model, error, (System.nanoTime() - start) / 1000000);
+                }
+            });
+        }
+
+        Result[] done = new Result[ks.length];
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ks.length)));
+        try {
+            List<Future<Result>> futures = pool.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                done[order[i]] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("K sweep interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("K sweep worker failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        results = Collections.unmodifiableList(Arrays.asList(done));
+        return results;
+    }
+
+    /**
+     * the warm start sweep - the K values in increasing order, every K seeded from the one before it
+     *
+     * @return the results, in the order of kValues
+     */
+    private Result[] runWarm(int[] kValues, KMeansEngine shared, ColorHistogram histogram) {
+        Integer[] order = new Integer[kValues.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final int[] ks = kValues.clone();
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return ks[a] - ks[b];
+            }
+        });
+
+        KMeansSeeding seeding = new KMeansSeeding(shared);
+        //the K values run one at a time, so they can all use one engine (and its work buffers) and one pool of
+        //threads for the assignment step
+        KMeansEngine engine = new KMeansEngine(shared);
+        ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        engine.setExecutor(pool);
+        Result[] done = new Result[ks.length];
+        KMeans previous = null;
+        try {
+            for (Integer index : order) {
+                long start = System.nanoTime();
+                KMeans model = createModel(ks[index]);
+                model.setParallelism(threads);
+                double[] initialCentroids = null;
+                if (previous != null) {
+                    double[] previousCentroids = new double[previous.K * shared.getNumAttributes()];
+                    for (int c = 0; c < previous.K; c++) {
+                        double[] centroid = previous.getCentroidInstances().instance(c).toDoubleArray();
+                        System.arraycopy(centroid, 0, previousCentroids, c * centroid.length, centroid.length);
+                    }
+                    initialCentroids = seeding.bisect(previousCentroids, previous.getPointAlloc(), previous.K,
+                            ks[index]);
+                }
+                model.buildClusterModel(engine, histogram, initialCentroids);
+                double error = model.calcAvgWSSSE(pixels);
+                done[index] = new Result(ks[index], model, error, (System.nanoTime() - start) / 1000000);
+                previous = model;
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * @return the result with the lowest error
+     */
+    public Result getBest() {
+        checkRun();
+        Result best = results.get(0);
+        for (Result result : results) {
+            if (result.getError() < best.getError()) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * the elbow of the error curve - with K and the error both scaled to [0, 1], the K whose error is furthest below
+     * the straight line from the smallest to the largest K. Adding centroids past the elbow buys little error.
+     *
+     * @return the result at the elbow (the lowest error one if there are fewer than 3 K values)
+     */
+    public Result getElbow() {
+        checkRun();
+        List<Result> sorted = new ArrayList<Result>(results);
+        Collections.sort(sorted, new Comparator<Result>() {
+            @Override
+            public int compare(Result a, Result b) {
+                return a.getK() - b.getK();
+            }
+        });
+        if (sorted.size() < 3) {
+            return getBest();
+        }
+
+        Result first = sorted.get(0);
+        Result last = sorted.get(sorted.size() - 1);
+        double kRange = last.getK() - first.getK();
+        double errorRange = first.getError() - last.getError();
+        if (kRange == 0 || errorRange <= 0) {
+            return getBest();
+        }
+
+        Result elbow = first;
+        double maxGap = 0;
+        for (Result result : sorted) {
+            double x = (result.getK() - first.getK()) / kRange;
+            double y = (result.getError() - last.getError()) / errorRange;
+            //the line goes from (0, 1) to (1, 0)
+            double gap = (1 - x) - y;
+            if (gap > maxGap) {
+                maxGap = gap;
+                elbow = result;
+            }
+        }
+        return elbow;
+    }
+
+    /**
+     * print the wall time and error of every K
+     *
+     * @param out
+     */
+    public void report(PrintStream out) {
+        checkRun();
+        out.println("K,iterations,time (ms),average WSSSE");
+        for (Result result : results) {
+            out.println(result.getK() + "," + result.getModel().getIterationsRun() + "," + result.getMillis() + ","
+                    + result.getError());
+        }
+    }
+
+    private void checkRun() {
+        if (results == null) {
+            throw new IllegalStateException("The sweep has not been run yet");
+        }
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * @param threads number of K values trained at the same time (in warm start mode, the threads of the assignment
+     *                step of every K)
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param warmStart run the K values in increasing order, each seeded by bisecting the clusters of the previous one
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+    /**
+     * @param useColorHistogram cluster the distinct colors of the image (weighted by their pixel counts) instead of
+     *                          every pixel
+     */
+    public void setUseColorHistogram(boolean useColorHistogram) {
+        this.useColorHistogram = useColorHistogram;
+    }
+}
@@ -0,0 +1,154 @@
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+
+/**
+ * The pixels of an image as packed ARGB ints in row-major order (pixel (row, col) is found at row * width + col).
+ * The pixels are read from the image's backing data buffer in bulk - no per pixel getRGB call and no per pixel object -
+ * and the buffer can be handed straight to the K-Means engine (or a ColorHistogram). A weka Instances view is still
+ * available through toInstances.
+ */
+public class PixelBuffer {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    public PixelBuffer(int width, int height, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * read the pixels of an image. The common layouts (3/4 byte BGR/ABGR as decoded from JPEG/PNG, and int RGB/ARGB)
+     * are copied straight out of the data buffer, anything else goes through one bulk getRGB call.
+     *
+     * @param image
+     * @return the pixels of the image
+     */
+    public static PixelBuffer fromImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = new int[width * height];
+        Raster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        boolean direct = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && buffer.getNumBanks() == 1 && buffer.getOffset() == 0;
+
+        if (direct && (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                || image.getType() == BufferedImage.TYPE_4BYTE_ABGR)
+                && ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride()
+                == width * raster.getNumBands()) {
+            byte[] data = ((DataBufferByte) buffer).getData();
+            if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+                for (int i = 0, b = 0; i < pixels.length; i++, b += 3) {
+                    pixels[i] = 0xff000000 | (data[b + 2] & 0xff) << 16 | (data[b + 1] & 0xff) << 8 | (data[b] & 0xff);
+                }
+            } else {
+                for (int i = 0, b = 0; i < pixels.length; i++, b += 4) {
+                    pixels[i] = (data[b] & 0xff) << 24 | (data[b + 3] & 0xff) << 16 | (data[b + 2] & 0xff) << 8
+                            | (data[b + 1] & 0xff);
+                }
+            }
+        } else if (direct && (image.getType() == BufferedImage.TYPE_INT_RGB
+                || image.getType() == BufferedImage.TYPE_INT_ARGB)
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width) {
+            int[] data = ((DataBufferInt) buffer).getData();
+            //no alpha channel - the pixels are opaque
+            int alpha = (image.getType() == BufferedImage.TYPE_INT_RGB) ? 0xff000000 : 0;
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = data[i] | alpha;
+            }
+        } else {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+
+        return new PixelBuffer(width, height, pixels);
+    }
+
+    /**
+     * an empty dataset with the alpha, red, green, blue attributes of an image
+     *
+     * @param capacity
+     * @return the header
+     */
+    public static Instances header(int capacity) {
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>(4);
+        attributes.add(new Attribute("alpha"));
+        attributes.add(new Attribute("red"));
+        attributes.add(new Attribute("green"));
+        attributes.add(new Attribute("blue"));
+        return new Instances("Image", attributes, capacity);
+    }
+
+    /**
+     * a weka view of the pixels - one instance (alpha, red, green, blue) per pixel, in row-major order
+     *
+     * @return the pixels as instances
+     */
+    public Instances toInstances() {
+        Instances instances = header(pixels.length);
+        for (int pixel : pixels) {
+            instances.add(new DenseInstance(1.0, unpack(pixel)));
+        }
+        return instances;
+    }
+
+    /**
+     * a K-Means engine over the pixels (4 attributes - alpha, red, green, blue)
+     *
+     * @return the engine
+     */
+    public KMeansEngine toEngine() {
+        return new KMeansEngine(toPoints(pixels, pixels.length), pixels.length, 4, null);
+    }
+
+    /**
+     * unpack ARGB pixels into flat row-major points (alpha, red, green, blue)
+     *
+     * @param pixels packed ARGB values
+     * @param count  number of pixels to unpack
+     * @return the points
+     */
+    static double[] toPoints(int[] pixels, int count) {
+        double[] points = new double[count * 4];
+        for (int i = 0; i < count; i++) {
+            int pixel = pixels[i];
+            points[i * 4] = (pixel >> 24) & 0xff;
+            points[i * 4 + 1] = (pixel >> 16) & 0xff;
+            points[i * 4 + 2] = (pixel >> 8) & 0xff;
+            points[i * 4 + 3] = pixel & 0xff;
+        }
+        return points;
+    }
+
+    /**
+     * @param pixel packed ARGB value
+     * @return the alpha, red, green, blue values of the pixel
+     */
+    public static double[] unpack(int pixel) {
+        return new double[]{(pixel >> 24) & 0xff, (pixel >> 16) & 0xff, (pixel >> 8) & 0xff, pixel & 0xff};
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+}
@@ -19,6 +19,7 @@
  *
  */
 
+import no.uib.cipr.matrix.DenseMatrix;
 import no.uib.cipr.matrix.Matrices;
 import no.uib.cipr.matrix.SymmDenseEVD;
 import no.uib.cipr.matrix.UpperSymmDenseMatrix;
@@ -26,11 +27,14 @@ import weka.attributeSelection.AttributeTransformer;
 import weka.attributeSelection.UnsupervisedAttributeEvaluator;
 import weka.core.*;
 import weka.core.Capabilities.Capability;
+import weka.core.converters.ArffLoader;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.*;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.Random;
 import java.util.Vector;
 
 /**
@@ -86,6 +90,36 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
      */
     private static final long serialVersionUID = -3675307197777734007L;
 
+    /**
+     * rows projected together by the batch transform - the block stays in the
+     * cache while every component is multiplied against it
+     */
+    private static final int ROW_BLOCK = 64;
+
+    /**
+     * subspace solver: extra vectors iterated along with the wanted ones (they
+     * speed up the convergence of the last wanted ones), the iteration cap,
+     * the residual tolerance (relative to the largest eigenvalue) and the seed
+     * of the random start
+     */
+    private static final int SUBSPACE_OVERSAMPLING = 10;
+    private static final int SUBSPACE_MAX_ITERATIONS = 300;
+    private static final double SUBSPACE_TOLERANCE = 1e-10;
+    private static final long SUBSPACE_SEED = 1;
+
+    /**
+     * how the eigenvectors of the correlation/covariance matrix are computed
+     */
+    public enum Solver {
+        //full eigen decomposition - every component
+        FULL,
+        //block subspace iteration - only the top components that convertInstance keeps (see setNumPrinComponents)
+        SUBSPACE,
+        //randomized SVD of the standardized data - the SUBSPACE iteration with the covariance products computed from
+        //the data, so the d x d matrix is never formed
+        RANDOMIZED_SVD
+    }
+
     /**
      * The data to transform analyse/transform
      */
@@ -156,6 +190,12 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
      */
     private int[] m_sortedEigens;
 
+    /**
+     * the eigenvectors in decreasing order of their eigenvalues - component c
+     * is m_components[c], so that a projection reads one row
+     */
+    private double[][] m_components;
+
     /**
      * sum of the eigenvalues
      */
@@ -170,6 +210,18 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
     private Center m_centerFilter;
     private Standardize m_standardizeFilter;
 
+    /**
+     * the filters compiled for all numeric data (null otherwise): filtered
+     * attribute j is input attribute m_inputIndices[j], minus m_means[j] and
+     * (unless centering) divided by m_stdDevs[j]
+     */
+    private int[] m_inputIndices;
+
+    /**
+     * work space for scoring a single instance through m_inputIndices
+     */
+    private transient double[] m_preprocessed;
+
     /**
      * The number of attributes in the pc transformed data
      */
@@ -186,6 +238,19 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
      */
     private boolean m_transBackToOriginal = false;
 
+    /**
+     * the eigen solver
+     */
+    private Solver m_solver = Solver.FULL;
+
+    /**
+     * iterations run by the last truncated solve, and whether every wanted
+     * eigenpair met the residual tolerance within SUBSPACE_MAX_ITERATIONS
+     * (always true for the full decomposition)
+     */
+    private int m_solverIterations = 0;
+    private boolean m_solverConverged = true;
+
     /**
      * maximum number of attributes in the transformed attribute name
      */
@@ -362,7 +427,8 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
      * Sets the amount of variance to account for when retaining principal
      * components
      *
-     * @param vc the proportion of total variance to account for
+     * @param vc the proportion of total variance to account for (1 retains
+     *           every component)
      */
     public void setVarianceCovered(double vc) {
         m_coverVariance = vc;
@@ -439,6 +505,40 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
         return m_transBackToOriginal;
     }
 
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String solverTipText() {
+        return "FULL decomposes the whole correlation/covariance matrix. SUBSPACE "
+                + "only computes the top eigenvectors - as many as the number of "
+                + "principal components keeps - which is much faster for wide data. "
+                + "RANDOMIZED_SVD computes the same top eigenvectors straight from "
+                + "the data, without forming the correlation/covariance matrix.";
+    }
+
+    /**
+     * Sets the eigen solver. With SUBSPACE and RANDOMIZED_SVD only the top
+     * components are computed, so the transformed data has no (all zero)
+     * attributes for the rest of them.
+     *
+     * @param solver the solver
+     */
+    public void setSolver(Solver solver) {
+        m_solver = solver;
+    }
+
+    /**
+     * Gets the eigen solver
+     *
+     * @return the solver
+     */
+    public Solver getSolver() {
+        return m_solver;
+    }
+
     /**
      * Gets the current settings of PrincipalComponents
      *
@@ -508,12 +608,138 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
         buildAttributeConstructor(data);
     }
 
+    /**
+     * Performs the analysis on an ARFF file without loading it: the rows are
+     * read one at a time (ArffLoader's incremental mode) and the means and the
+     * covariance matrix are updated with every row (Welford's one-pass
+     * algorithm), so the memory needed depends on the number of attributes
+     * only. The data must be all numeric (besides the class) and have no
+     * missing values. Attributes with a single value are left out, like
+     * buildEvaluator does. With the RANDOMIZED_SVD solver the top components
+     * are computed from the covariance matrix, as with SUBSPACE, since the data
+     * isn't kept.
+     *
+     * @param arffFile   the ARFF file
+     * @param classIndex index of the class attribute, which is left out of the
+     *                   analysis and appended to the transformed data (-1 for
+     *                   none)
+     * @throws Exception if the file can't be read or its data can't be
+     *                   analysed
+     */
+    public void buildEvaluator(File arffFile, int classIndex) throws Exception {
+        ArffLoader loader = new ArffLoader();
+        loader.setFile(arffFile);
+        Instances structure = loader.getStructure();
+        structure.setClassIndex(classIndex);
+
+        int numInputs = 0;
+        int[] inputs = new int[structure.numAttributes()];
+        for (int i = 0; i < structure.numAttributes(); i++) {
+            if (i == classIndex) {
+                continue;
+            }
+            if (!structure.attribute(i).isNumeric()) {
+                throw new Exception("Can't analyse " + arffFile + " incrementally: attribute "
+                        + structure.attribute(i).name() + " isn't numeric");
+            }
+            inputs[numInputs++] = i;
+        }
+
+        // running means and co-moments (sums of products of the deviations from
+        // the means, upper triangle), updated with every row
+        double[] means = new double[numInputs];
+        double[] comoments = new double[numInputs * numInputs];
+        double[] delta = new double[numInputs];
+        double[] row = new double[numInputs];
+        int n = 0;
+        Instance inst;
+        while ((inst = loader.getNextInstance(structure)) != null) {
+            n++;
+            for (int a = 0; a < numInputs; a++) {
+                row[a] = inst.value(inputs[a]);
+                if (Utils.isMissingValue(row[a])) {
+                    throw new Exception("Can't analyse " + arffFile + " incrementally: instance " + n
+                            + " has a missing value");
+                }
+                delta[a] = row[a] - means[a];
+                means[a] += delta[a] / n;
+            }
+            for (int a = 0; a < numInputs; a++) {
+                double deltaA = delta[a];
+                int offset = a * numInputs;
+                for (int b = a; b < numInputs; b++) {
+                    comoments[offset + b] += deltaA * (row[b] - means[b]);
+                }
+            }
+        }
+        if (n < 2) {
+            throw new Exception("Can't analyse " + arffFile + ": at least 2 instances are needed");
+        }
+
+        // leave out the attributes with a single value
+        int[] kept = new int[numInputs];
+        int numKept = 0;
+        for (int a = 0; a < numInputs; a++) {
+            if (comoments[a * numInputs + a] > 0) {
+                kept[numKept++] = a;
+            }
+        }
+        if (numKept == 0) {
+            throw new Exception("Can't analyse " + arffFile + ": no attribute has more than one value");
+        }
+
+        m_eigenvalues = null;
+        m_outputNumAtts = -1;
+        m_sumOfEigenValues = 0.0;
+        m_replaceMissingFilter = null;
+        m_nominalToBinFilter = null;
+        m_attributeFilter = null;
+        m_centerFilter = null;
+        m_standardizeFilter = null;
+        m_preprocessed = null;
+
+        m_trainHeader = new Instances(structure, 0);
+        m_hasClass = classIndex >= 0;
+        m_classIndex = classIndex;
+        m_numInstances = n;
+        m_numAttribs = numKept;
+
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        m_inputIndices = new int[numKept];
+        m_means = new double[numKept];
+        m_stdDevs = new double[numKept];
+        for (int k = 0; k < numKept; k++) {
+            int a = kept[k];
+            attributes.add((Attribute) structure.attribute(inputs[a]).copy());
+            m_inputIndices[k] = inputs[a];
+            m_means[k] = means[a];
+            m_stdDevs[k] = Math.sqrt(comoments[a * numInputs + a] / (n - 1));
+        }
+        // the training data itself isn't kept - only the header of the filtered data
+        m_trainInstances = new Instances(structure.relationName(), attributes, 0);
+
+        // the covariance matrix, or the correlation matrix of the standardized data
+        m_correlation = new UpperSymmDenseMatrix(m_numAttribs);
+        for (int i = 0; i < numKept; i++) {
+            for (int j = i; j < numKept; j++) {
+                double cov = comoments[kept[i] * numInputs + kept[j]] / (n - 1);
+                if (!m_center) {
+                    cov /= m_stdDevs[i] * m_stdDevs[j];
+                }
+                m_correlation.set(i, j, cov);
+            }
+        }
+
+        computeComponents();
+    }
+
     private void buildAttributeConstructor(Instances data) throws Exception {
         m_eigenvalues = null;
         m_outputNumAtts = -1;
         m_attributeFilter = null;
         m_nominalToBinFilter = null;
         m_sumOfEigenValues = 0.0;
+        m_hasClass = false;
         m_trainInstances = new Instances(data);
 
         // make a copy of the training data so that we can get the class
@@ -568,12 +794,63 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
         m_numInstances = m_trainInstances.numInstances();
         m_numAttribs = m_trainInstances.numAttributes();
 
-        fillCovariance();
+        fillCovariance(numEigens() == m_numAttribs || m_solver != Solver.RANDOMIZED_SVD);
+
+        // with only numeric attributes the filters just remove attributes and
+        // standardize/center - keep that as a column mapping
+        m_inputIndices = null;
+        m_preprocessed = null;
+        boolean allNumeric = true;
+        for (int i = 0; i < m_trainHeader.numAttributes(); i++) {
+            if (i != m_trainHeader.classIndex() && !m_trainHeader.attribute(i).isNumeric()) {
+                allNumeric = false;
+            }
+        }
+        if (allNumeric) {
+            m_inputIndices = new int[m_numAttribs];
+            int j = 0;
+            for (int i = 0; i < m_trainHeader.numAttributes(); i++) {
+                if (!deleteCols.contains(i)) {
+                    m_inputIndices[j++] = i;
+                }
+            }
+        }
+
+        computeComponents();
+    }
 
-        SymmDenseEVD evd = SymmDenseEVD.factorize(m_correlation);
+    /**
+     * The number of eigenpairs the solver computes: all of them with the full
+     * decomposition, otherwise as many components as convertInstance keeps -
+     * at most m_maxNumAttr + 2 (see numComponents)
+     */
+    private int numEigens() {
+        if (m_solver == Solver.FULL) {
+            return m_numAttribs;
+        }
+        return Math.min(m_numAttribs, Math.max(m_maxNumAttr, 0) + 2);
+    }
 
-        m_eigenvectors = Matrices.getArray(evd.getEigenvectors());
-        m_eigenvalues = evd.getEigenvalues();
+    /**
+     * Decompose the correlation/covariance matrix (or the training data, for
+     * RANDOMIZED_SVD) and set up the components and the output formats
+     *
+     * @throws Exception if the decomposition fails
+     */
+    private void computeComponents() throws Exception {
+        int numEigens = numEigens();
+        m_solverIterations = 0;
+        m_solverConverged = true;
+        if (numEigens == m_numAttribs) {
+            SymmDenseEVD evd = SymmDenseEVD.factorize(m_correlation);
+
+            m_eigenvectors = Matrices.getArray(evd.getEigenvectors());
+            m_eigenvalues = evd.getEigenvalues();
+        } else {
+            topEigens(numEigens);
+        }
+        numEigens = m_eigenvalues.length;
+        canonicalSigns();
 
 		/*
          * for (int i = 0; i < m_numAttribs; i++) { for (int j = 0; j <
@@ -588,7 +865,19 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
             }
         }
         m_sortedEigens = Utils.sort(m_eigenvalues);
-        m_sumOfEigenValues = Utils.sum(m_eigenvalues);
+        if (numEigens == m_numAttribs) {
+            m_sumOfEigenValues = Utils.sum(m_eigenvalues);
+        } else {
+            // the eigenvalues of all the components add up to the trace
+            m_sumOfEigenValues = trace();
+        }
+
+        m_components = new double[numEigens][m_numAttribs];
+        for (int c = 0; c < numEigens; c++) {
+            for (int j = 0; j < m_numAttribs; j++) {
+                m_components[c][j] = m_eigenvectors[j][m_sortedEigens[numEigens - c - 1]];
+            }
+        }
 
         m_transformedFormat = setOutputFormat();
         if (m_transBackToOriginal) {
@@ -601,9 +890,9 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
             double[][] orderedVectors = new double[m_eigenvectors.length][numVectors + 1];
 
             // try converting back to the original space
-            for (int i = m_numAttribs - 1; i > (m_numAttribs - numVectors - 1); i--) {
+            for (int i = numEigens - 1; i > (numEigens - numVectors - 1); i--) {
                 for (int j = 0; j < m_numAttribs; j++) {
-                    orderedVectors[j][m_numAttribs - i] = m_eigenvectors[j][m_sortedEigens[i]];
+                    orderedVectors[j][numEigens - i] = m_eigenvectors[j][m_sortedEigens[i]];
                 }
             }
 
@@ -619,6 +908,228 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
         }
     }
 
+    /**
+     * Flip every eigenvector whose largest (in magnitude) coefficient is
+     * negative. The solvers return an eigenvector with either sign, so
+     * without this the scores of a component could change sign between fits
+     * of the same data (e.g. buildEvaluator on the instances and on the
+     * ARFF file).
+     */
+    private void canonicalSigns() {
+        for (int c = 0; c < m_eigenvalues.length; c++) {
+            double largest = 0.0;
+            for (int j = 0; j < m_numAttribs; j++) {
+                if (Math.abs(m_eigenvectors[j][c]) > Math.abs(largest)) {
+                    largest = m_eigenvectors[j][c];
+                }
+            }
+            if (largest < 0) {
+                for (int j = 0; j < m_numAttribs; j++) {
+                    m_eigenvectors[j][c] = -m_eigenvectors[j][c];
+                }
+            }
+        }
+    }
+
+    /**
+     * The top eigenpairs of the correlation/covariance matrix by block
+     * subspace iteration: a block of vectors is multiplied by the matrix and
+     * orthonormalized over and over, and the eigenvectors are estimated from
+     * the block after every step (Rayleigh-Ritz). Every step costs one
+     * product of the matrix with the block instead of the O(d^3) full
+     * decomposition - computed from the training data if the matrix wasn't
+     * formed (RANDOMIZED_SVD).
+     * <p>
+     * Sets m_eigenvectors (number of attributes x numEigens) and
+     * m_eigenvalues (numEigens). If the residuals don't meet the tolerance
+     * within SUBSPACE_MAX_ITERATIONS the last estimate is kept and
+     * getSolverConverged() returns false.
+     *
+     * @param numEigens the number of eigenpairs
+     * @throws Exception if the small decompositions fail
+     */
+    private void topEigens(int numEigens) throws Exception {
+        int d = m_numAttribs;
+        int blockSize = Math.min(d, numEigens + SUBSPACE_OVERSAMPLING);
+        Random random = new Random(SUBSPACE_SEED);
+
+        DenseMatrix block = new DenseMatrix(d, blockSize);
+        double[] data = block.getData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextGaussian();
+        }
+        orthonormalize(block, random);
+
+        DenseMatrix product = new DenseMatrix(d, blockSize);
+        DenseMatrix projected = new DenseMatrix(blockSize, blockSize);
+        DenseMatrix vectors = new DenseMatrix(d, blockSize);
+        double[] values = null;
+        int[] order = null;
+        m_solverConverged = false;
+        for (int iteration = 0; iteration < SUBSPACE_MAX_ITERATIONS; iteration++) {
+            m_solverIterations = iteration + 1;
+            // Rayleigh-Ritz: the eigenpairs of the matrix restricted to the block
+            if (m_correlation != null) {
+                m_correlation.mult(block, product);
+            } else {
+                multiplyCovariance(block, product);
+            }
+            block.transAmult(product, projected);
+            SymmDenseEVD evd = SymmDenseEVD.factorize(new UpperSymmDenseMatrix(projected));
+            values = evd.getEigenvalues();
+            order = Utils.sort(values);
+            block.mult(evd.getEigenvectors(), vectors);
+
+            // the next block is the matrix times the estimated eigenvectors - already at hand as product * rotation
+            DenseMatrix next = new DenseMatrix(d, blockSize);
+            product.mult(evd.getEigenvectors(), next);
+
+            // converged when every wanted eigenvector v satisfies |Av - lambda v| <= tolerance * lambda_max
+            double limit = SUBSPACE_TOLERANCE * Math.max(values[order[blockSize - 1]], Double.MIN_VALUE);
+            boolean converged = true;
+            for (int c = 0; c < numEigens && converged; c++) {
+                int col = order[blockSize - c - 1];
+                double residual = 0.0;
+                for (int j = 0; j < d; j++) {
+                    double diff = next.get(j, col) - values[col] * vectors.get(j, col);
+                    residual += diff * diff;
+                }
+                converged = Math.sqrt(residual) <= limit;
+            }
+            if (converged) {
+                m_solverConverged = true;
+                break;
+            }
+
+            orthonormalize(next, random);
+            block = next;
+        }
+
+        m_eigenvectors = new double[d][numEigens];
+        m_eigenvalues = new double[numEigens];
+        for (int c = 0; c < numEigens; c++) {
+            int col = order[blockSize - c - 1];
+            m_eigenvalues[c] = values[col];
+            for (int j = 0; j < d; j++) {
+                m_eigenvectors[j][c] = vectors.get(j, col);
+            }
+        }
+    }
+
+    /**
+     * Product of the correlation/covariance matrix with a block of vectors,
+     * computed from the standardized/centered training data Z as
+     * Z^T (Z block) / (n - 1), one instance at a time - the work space is a
+     * single row and its product with the block.
+     *
+     * @param block   the vectors (number of attributes x block size)
+     * @param product output, the same size as block
+     */
+    private void multiplyCovariance(DenseMatrix block, DenseMatrix product) {
+        int d = m_numAttribs;
+        int blockSize = block.numColumns();
+        double[] vectors = block.getData();
+        double[] out = product.getData();
+        double[] row = new double[d];
+        double[] rowTimesBlock = new double[blockSize];
+
+        product.zero();
+        for (Instance inst : m_trainInstances) {
+            for (int j = 0; j < d; j++) {
+                row[j] = inst.value(j);
+            }
+            for (int c = 0; c < blockSize; c++) {
+                double sum = 0.0;
+                int offset = c * d;
+                for (int j = 0; j < d; j++) {
+                    sum += row[j] * vectors[offset + j];
+                }
+                rowTimesBlock[c] = sum;
+            }
+            for (int c = 0; c < blockSize; c++) {
+                double value = rowTimesBlock[c];
+                int offset = c * d;
+                for (int j = 0; j < d; j++) {
+                    out[offset + j] += row[j] * value;
+                }
+            }
+        }
+
+        double n = m_trainInstances.numInstances() - 1;
+        for (int i = 0; i < out.length; i++) {
+            out[i] /= n;
+        }
+    }
+
+    /**
+     * @return the trace of the correlation/covariance matrix - the total
+     * variance of the standardized/centered training data
+     */
+    private double trace() {
+        double trace = 0.0;
+        if (m_correlation != null) {
+            for (int i = 0; i < m_numAttribs; i++) {
+                trace += m_correlation.get(i, i);
+            }
+            return trace;
+        }
+
+        for (Instance inst : m_trainInstances) {
+            for (int j = 0; j < m_numAttribs; j++) {
+                trace += inst.value(j) * inst.value(j);
+            }
+        }
+        return trace / (m_trainInstances.numInstances() - 1);
+    }
+
+    /**
+     * Orthonormalize the columns of a matrix in place (modified Gram-Schmidt,
+     * twice for accuracy). A column that is (numerically) in the span of the
+     * ones before it is replaced by a random one.
+     *
+     * @param matrix the matrix
+     * @param random source of the replacement columns
+     */
+    private static void orthonormalize(DenseMatrix matrix, Random random) {
+        int rows = matrix.numRows();
+        double[] data = matrix.getData();
+        for (int c = 0; c < matrix.numColumns(); c++) {
+            int offset = c * rows;
+            for (int attempt = 0; ; attempt++) {
+                double before = 0.0;
+                for (int j = 0; j < rows; j++) {
+                    before += data[offset + j] * data[offset + j];
+                }
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int prev = 0; prev < c; prev++) {
+                        int prevOffset = prev * rows;
+                        double dot = 0.0;
+                        for (int j = 0; j < rows; j++) {
+                            dot += data[prevOffset + j] * data[offset + j];
+                        }
+                        for (int j = 0; j < rows; j++) {
+                            data[offset + j] -= dot * data[prevOffset + j];
+                        }
+                    }
+                }
+                double norm = 0.0;
+                for (int j = 0; j < rows; j++) {
+                    norm += data[offset + j] * data[offset + j];
+                }
+                if (norm > 1e-20 * before || attempt > 10) {
+                    norm = Math.sqrt(norm);
+                    for (int j = 0; j < rows; j++) {
+                        data[offset + j] /= norm;
+                    }
+                    break;
+                }
+                for (int j = 0; j < rows; j++) {
+                    data[offset + j] = random.nextGaussian();
+                }
+            }
+        }
+    }
+
     /**
      * Returns just the header for the transformed data (ie. an empty set of
      * instances. This is so that AttributeSelection can determine the structure
@@ -650,17 +1161,40 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
         return new Instances(m_trainInstances, 0);
     }
 
+    /**
+     * Whether the eigenpairs of the last fit are accurate to the solver's
+     * residual tolerance - false if a truncated solver (SUBSPACE,
+     * RANDOMIZED_SVD) stopped at its iteration cap first
+     *
+     * @return true if the solver converged
+     */
+    public boolean getSolverConverged() {
+        return m_solverConverged;
+    }
+
+    /**
+     * Gets the number of iterations of the last truncated solve (0 for the
+     * full decomposition)
+     *
+     * @return the number of iterations
+     */
+    public int getSolverIterations() {
+        return m_solverIterations;
+    }
+
     /**
      * Return the correlation/covariance matrix
      *
-     * @return the correlation or covariance matrix
+     * @return the correlation or covariance matrix (null with the
+     * RANDOMIZED_SVD solver, which doesn't form it)
      */
     public double[][] getCorrelationMatrix() {
-        return Matrices.getArray(m_correlation);
+        return (m_correlation == null) ? null : Matrices.getArray(m_correlation);
     }
 
     /**
-     * Return the unsorted eigenvectors
+     * Return the unsorted eigenvectors (only the computed ones with the
+     * truncated solvers)
      *
      * @return the unsorted eigenvectors
      */
@@ -669,7 +1203,8 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
     }
 
     /**
-     * Return the eigenvalues corresponding to the eigenvectors
+     * Return the eigenvalues corresponding to the eigenvectors (only the
+     * computed ones with the truncated solvers)
      *
      * @return the eigenvalues
      */
@@ -689,21 +1224,215 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
             throw new Exception("Principal components hasn't been built yet");
         }
 
+        // the whole batch at once: filter, then multiply by the components
+        int numComponents = numComponents(m_maxNumAttr);
+        double[][] scores = new double[data.numInstances()][numComponents];
+        multiplyTransposed(filterData(data), m_components, numComponents, scores);
+
+        return buildOutput(data, scores, numComponents);
+    }
+
+    /**
+     * Project data onto all the principal components of the fitted model. The
+     * scores can then be turned into transformed data at any number of
+     * components with transformedData(data, scores, numPrinComponents),
+     * without refitting and without filtering the data again.
+     *
+     * @param data the instances to project
+     * @return the scores - scores[i][c] is instance i on component c (in
+     * decreasing order of variance), for every component computed
+     * @throws Exception if the data can't be projected
+     */
+    public double[][] componentScores(Instances data) throws Exception {
+        if (m_eigenvalues == null) {
+            throw new Exception("Principal components hasn't been built yet");
+        }
+
+        double[][] scores = new double[data.numInstances()][m_components.length];
+        multiplyTransposed(filterData(data), m_components, m_components.length, scores);
+
+        return scores;
+    }
+
+    /**
+     * Project a single instance onto the first principal components of the
+     * fitted model. With all numeric data (and no missing values) the instance
+     * goes straight from its values to the scores without any filter or
+     * allocation, for scoring instances one at a time.
+     *
+     * @param instance an instance in the original (unormalized) format
+     * @param scores   output - the score on component c is written to
+     *                 scores[c], for as many components as scores holds
+     * @throws Exception if the instance can't be projected
+     */
+    public void componentScores(Instance instance, double[] scores) throws Exception {
+        if (m_eigenvalues == null) {
+            throw new Exception("Principal components hasn't been built yet");
+        }
+
+        int numComponents = Math.min(scores.length, m_components.length);
+        if (canPreprocess(instance)) {
+            checkHeader(instance.dataset());
+            if (m_preprocessed == null) {
+                m_preprocessed = new double[m_numAttribs];
+            }
+            preprocess(instance, m_preprocessed);
+            project(m_preprocessed, scores, numComponents);
+        } else {
+            project(filterInstance(instance), scores, numComponents);
+        }
+    }
+
+    /**
+     * Gets the transformed data for a number of principal components from
+     * scores computed by componentScores - the fitted model is left as it is.
+     *
+     * @param data              the instances the scores were computed from
+     * @param scores            the scores of data
+     * @param numPrinComponents the number of components, as in
+     *                          setNumPrinComponents
+     * @return the transformed data
+     * @throws Exception if transformed data can't be returned
+     */
+    public Instances transformedData(Instances data, double[][] scores, int numPrinComponents) throws Exception {
+        if (m_eigenvalues == null) {
+            throw new Exception("Principal components hasn't been built yet");
+        }
+        if (scores.length != data.numInstances()) {
+            throw new IllegalArgumentException("Expected scores for " + data.numInstances() + " instances, got "
+                    + scores.length);
+        }
+
+        return buildOutput(data, scores, numComponents(numPrinComponents));
+    }
+
+    /**
+     * Build the transformed data from the scores of its instances, converted
+     * back to the original space if requested
+     *
+     * @param data          the instances the scores were computed from
+     * @param scores        the scores of data, at least numComponents per
+     *                      instance
+     * @param numComponents the number of components to keep
+     * @return the transformed data
+     */
+    private Instances buildOutput(Instances data, double[][] scores, int numComponents) {
         Instances output = null;
 
         if (m_transBackToOriginal) {
-            output = new Instances(m_originalSpaceFormat);
+            output = new Instances(m_originalSpaceFormat, data.numInstances());
         } else {
-            output = new Instances(m_transformedFormat);
+            output = new Instances(m_transformedFormat, data.numInstances());
         }
         for (int i = 0; i < data.numInstances(); i++) {
-            Instance converted = convertInstance(data.instance(i));
-            output.add(converted);
+            Instance instance = data.instance(i);
+            double[] newVals = null;
+            if (m_transBackToOriginal) {
+                newVals = new double[m_hasClass ? m_numAttribs + 1 : m_numAttribs];
+                backProject(scores[i], numComponents, newVals);
+            } else {
+                newVals = new double[m_outputNumAtts];
+                System.arraycopy(scores[i], 0, newVals, 0, numComponents);
+            }
+            if (m_hasClass) {
+                // class is always appended as the last attribute
+                newVals[newVals.length - 1] = instance.value(instance.classIndex());
+            }
+
+            if (instance instanceof SparseInstance) {
+                output.add(new SparseInstance(instance.weight(), newVals));
+            } else {
+                output.add(new DenseInstance(instance.weight(), newVals));
+            }
         }
 
         return output;
     }
 
+    /**
+     * The reconstruction error curve of data: for every number of components
+     * m, the average euclidean distance between the instances and their
+     * reconstruction from the first m components, back in the original space
+     * (over the attributes the model was fitted on). Every instance is filtered
+     * once and its residual is updated one component at a time, so the whole
+     * curve costs about as much as a single transformedData.
+     *
+     * @param data the instances to reconstruct
+     * @return the errors - errors[m] for m = 0 .. number of components
+     * computed (the number of attributes, unless using a truncated solver)
+     * @throws Exception if the data can't be projected
+     */
+    public double[] reconstructionErrors(Instances data) throws Exception {
+        if (m_eigenvalues == null) {
+            throw new Exception("Principal components hasn't been built yet");
+        }
+
+        double[][] filtered = filterData(data);
+        double[] errors = new double[m_components.length + 1];
+        double[] residual = new double[m_numAttribs];
+        for (int i = 0; i < data.numInstances(); i++) {
+            double[] values = filtered[i];
+            System.arraycopy(values, 0, residual, 0, m_numAttribs);
+            errors[0] += originalSpaceNorm(residual);
+
+            // remove the part of the instance on each component from the residual
+            for (int c = 0; c < m_components.length; c++) {
+                double[] component = m_components[c];
+                double score = 0.0;
+                for (int j = 0; j < m_numAttribs; j++) {
+                    score += (component[j] * values[j]);
+                }
+                for (int j = 0; j < m_numAttribs; j++) {
+                    residual[j] -= score * component[j];
+                }
+                errors[c + 1] += originalSpaceNorm(residual);
+            }
+        }
+
+        for (int m = 0; m < errors.length; m++) {
+            errors[m] /= data.numInstances();
+        }
+        return errors;
+    }
+
+    /**
+     * The variance left uncovered by the first components - the sum of the
+     * eigenvalues of the remaining ones. For the training data this is
+     * (n - 1) / n times the mean squared reconstruction error in the
+     * standardized (or centered) space, so it needs no pass over the data.
+     *
+     * @return the variances - variances[m] for m = 0 .. number of components
+     * computed
+     * @throws Exception if the model hasn't been built
+     */
+    public double[] residualVariances() throws Exception {
+        if (m_eigenvalues == null) {
+            throw new Exception("Principal components hasn't been built yet");
+        }
+
+        // the variance of the components that weren't computed (none with the full decomposition)
+        int numEigens = m_eigenvalues.length;
+        double[] variances = new double[numEigens + 1];
+        variances[numEigens] = Math.max(m_sumOfEigenValues - Utils.sum(m_eigenvalues), 0.0);
+        for (int m = numEigens - 1; m >= 0; m--) {
+            variances[m] = variances[m + 1] + m_eigenvalues[m_sortedEigens[numEigens - m - 1]];
+        }
+        return variances;
+    }
+
+    /**
+     * euclidean norm of a residual of the filtered data, scaled back to the
+     * original space as in convertInstanceToOriginal
+     */
+    private double originalSpaceNorm(double[] residual) {
+        double sum = 0.0;
+        for (int j = 0; j < m_numAttribs; j++) {
+            double value = m_center ? residual[j] : residual[j] * m_stdDevs[j];
+            sum += value * value;
+        }
+        return Math.sqrt(sum);
+    }
+
     /**
      * Evaluates the merit of a transformed attribute. This is defined to be 1
      * minus the cumulative variance explained. Merit can't be meaningfully
@@ -725,14 +1454,23 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
 
         // return 1-cumulative variance explained for this transformed att
         double cumulative = 0.0;
-        for (int i = m_numAttribs - 1; i >= m_numAttribs - att - 1; i--) {
+        int numEigens = m_eigenvalues.length;
+        for (int i = numEigens - 1; i >= Math.max(numEigens - att - 1, 0); i--) {
             cumulative += m_eigenvalues[m_sortedEigens[i]];
         }
 
         return 1.0 - cumulative / m_sumOfEigenValues;
     }
 
-    private void fillCovariance() throws Exception {
+    /**
+     * Standardize (or center) the training data and compute its
+     * correlation/covariance matrix
+     *
+     * @param formMatrix false to only standardize/center the data - the
+     *                   matrix is then left null
+     * @throws Exception if the data can't be filtered
+     */
+    private void fillCovariance(boolean formMatrix) throws Exception {
         // first store the means
         m_means = new double[m_trainInstances.numAttributes()];
         m_stdDevs = new double[m_trainInstances.numAttributes()];
@@ -752,18 +1490,44 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
             m_trainInstances = Filter.useFilter(m_trainInstances, m_standardizeFilter);
         }
 
-        // now compute the covariance matrix
+        if (!formMatrix) {
+            m_correlation = null;
+            return;
+        }
+
+        // now compute the covariance matrix - a single pass over the instances, adding the outer product of every
+        // row to the upper triangle (every entry still sums its products in instance order)
         m_correlation = new UpperSymmDenseMatrix(m_numAttribs);
+        double[] upper = new double[m_numAttribs * m_numAttribs];
+        double[] row = new double[m_numAttribs];
+        for (Instance inst : m_trainInstances) {
+            for (int i = 0; i < m_numAttribs; i++) {
+                row[i] = inst.value(i);
+            }
+            addOuterProduct(upper, row, m_numAttribs);
+        }
+
+        double n = m_trainInstances.numInstances() - 1;
         for (int i = 0; i < m_numAttribs; i++) {
             for (int j = i; j < m_numAttribs; j++) {
+                m_correlation.set(i, j, upper[i * m_numAttribs + j] / n);
+            }
+        }
+    }
 
-                double cov = 0;
-                for (Instance inst : m_trainInstances) {
-                    cov += inst.value(i) * inst.value(j);
-                }
-
-                cov /= m_trainInstances.numInstances() - 1;
-                m_correlation.set(i, j, cov);
+    /**
+     * rank-1 update of the upper triangle of a row-major d x d matrix: upper += row * row^T
+     *
+     * @param upper the matrix, entry (i, j) at upper[i * d + j] for j >= i
+     * @param row   the row to add
+     * @param d     number of attributes
+     */
+    private static void addOuterProduct(double[] upper, double[] row, int d) {
+        for (int i = 0; i < d; i++) {
+            double value = row[i];
+            int offset = i * d;
+            for (int j = i; j < d; j++) {
+                upper[offset + j] += value * row[j];
             }
         }
     }
@@ -786,14 +1550,21 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
         }
         // tomorrow
         String corrCov = (m_center) ? "Covariance " : "Correlation ";
-        result.append(corrCov + "matrix\n" + matrixToString(Matrices.getArray(m_correlation)) + "\n\n");
+        if (m_correlation != null) {
+            result.append(corrCov + "matrix\n" + matrixToString(Matrices.getArray(m_correlation)) + "\n\n");
+        }
+        if (!m_solverConverged) {
+            result.append("Warning: the " + m_solver + " solver did not converge in " + m_solverIterations
+                    + " iterations\n\n");
+        }
         result.append("eigenvalue\tproportion\tcumulative\n");
-        for (int i = m_numAttribs - 1; i > (m_numAttribs - numVectors - 1); i--) {
+        int numEigens = m_eigenvalues.length;
+        for (int i = numEigens - 1; i > (numEigens - numVectors - 1); i--) {
             cumulative += m_eigenvalues[m_sortedEigens[i]];
             result.append(Utils.doubleToString(m_eigenvalues[m_sortedEigens[i]], 9, 5) + "\t"
                     + Utils.doubleToString((m_eigenvalues[m_sortedEigens[i]] / m_sumOfEigenValues), 9, 5) + "\t"
                     + Utils.doubleToString((cumulative / m_sumOfEigenValues), 9, 5) + "\t"
-                    + output.attribute(m_numAttribs - i - 1).name() + "\n");
+                    + output.attribute(numEigens - i - 1).name() + "\n");
         }
 
         result.append("\nEigenvectors\n");
@@ -803,7 +1574,7 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
         result.append("\n");
         for (int j = 0; j < m_numAttribs; j++) {
 
-            for (int i = m_numAttribs - 1; i > (m_numAttribs - numVectors - 1); i--) {
+            for (int i = numEigens - 1; i > (numEigens - numVectors - 1); i--) {
                 result.append(Utils.doubleToString(m_eigenvectors[j][m_sortedEigens[i]], 7, 4) + "\t");
             }
             result.append(m_trainInstances.attribute(j).name() + '\n');
@@ -872,17 +1643,7 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
             newVals[m_numAttribs] = inst.value(inst.numAttributes() - 1);
         }
 
-        for (int i = 0; i < m_eTranspose[0].length; i++) {
-            double tempval = 0.0;
-            for (int j = 1; j < m_eTranspose.length; j++) {
-                tempval += (m_eTranspose[j][i] * inst.value(j - 1));
-            }
-            newVals[i] = tempval;
-            if (!m_center) {
-                newVals[i] *= m_stdDevs[i];
-            }
-            newVals[i] += m_means[i];
-        }
+        backProject(inst.toDoubleArray(), m_eTranspose.length - 1, newVals);
 
         if (inst instanceof SparseInstance) {
             return new SparseInstance(inst.weight(), newVals);
@@ -906,13 +1667,38 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
             throw new Exception("convertInstance: Principal components not " + "built yet");
         }
 
+        double[] filtered = filterInstance(instance);
+
         double[] newVals = new double[m_outputNumAtts];
-        Instance tempInst = (Instance) instance.copy();
-        if (!instance.dataset().equalHeaders(m_trainHeader)) {
-            throw new Exception("Can't convert instance: header's don't match: " + "PrincipalComponents\n"
-                    + instance.dataset().equalHeadersMsg(m_trainHeader));
+        if (m_hasClass) {
+            newVals[m_outputNumAtts - 1] = instance.value(instance.classIndex());
         }
 
+        project(filtered, newVals, numComponents(m_maxNumAttr));
+
+        return toOutput(instance, newVals);
+    }
+
+    /**
+     * Run an instance in original (unormalized) format through the filters of
+     * the training data: missing values, nominal to binary, removed attributes
+     * and standardize/center.
+     *
+     * @param instance an instance in the original (unormalized) format
+     * @return the filtered values
+     * @throws Exception if the instance can't be filtered
+     */
+    private double[] filterInstance(Instance instance) throws Exception {
+        checkHeader(instance.dataset());
+
+        double[] values = new double[m_numAttribs];
+        if (canPreprocess(instance)) {
+            preprocess(instance, values);
+            return values;
+        }
+
+        Instance tempInst = (Instance) instance.copy();
+
         m_replaceMissingFilter.input(tempInst);
         m_replaceMissingFilter.batchFinished();
         tempInst = m_replaceMissingFilter.output();
@@ -943,28 +1729,223 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
             tempInst = m_centerFilter.output();
         }
 
-        if (m_hasClass) {
-            newVals[m_outputNumAtts - 1] = instance.value(instance.classIndex());
+        for (int j = 0; j < m_numAttribs; j++) {
+            values[j] = tempInst.value(j);
         }
+        return values;
+    }
 
-        double cumulative = 0;
-        int numAttAdded = 0;
-        for (int i = m_numAttribs - 1; i >= 0; i--) {
+    /**
+     * @return true if the compiled filters can take the instance (all numeric
+     * data and no missing value to replace - unless the model was fitted
+     * incrementally, without the weka filters)
+     */
+    private boolean canPreprocess(Instance instance) {
+        return m_inputIndices != null && (m_replaceMissingFilter == null || !instance.hasMissingValue());
+    }
+
+    /**
+     * The filters compiled for all numeric data: pick the kept attributes,
+     * subtract the means and (unless centering) divide by the standard
+     * deviations. A missing value is replaced by the mean, like
+     * ReplaceMissingValues does.
+     *
+     * @param instance an instance
+     * @param values   output - the filtered values
+     */
+    private void preprocess(Instance instance, double[] values) {
+        for (int j = 0; j < m_numAttribs; j++) {
+            double value = instance.value(m_inputIndices[j]);
+            if (Utils.isMissingValue(value)) {
+                values[j] = 0.0;
+                continue;
+            }
+            value -= m_means[j];
+            values[j] = m_center ? value : value / m_stdDevs[j];
+        }
+    }
+
+    private void checkHeader(Instances header) throws Exception {
+        if (!header.equalHeaders(m_trainHeader)) {
+            throw new Exception("Can't convert instance: header's don't match: " + "PrincipalComponents\n"
+                    + header.equalHeadersMsg(m_trainHeader));
+        }
+    }
+
+    /**
+     * Run a batch of instances in original (unormalized) format through the
+     * filters of the training data - every filter takes the whole batch at
+     * once - and copy the result into a matrix
+     *
+     * @param data instances in the original (unormalized) format
+     * @return the filtered values - row i is instance i
+     * @throws Exception if the data can't be filtered
+     */
+    private double[][] filterData(Instances data) throws Exception {
+        checkHeader(data);
+
+        if (m_inputIndices != null) {
+            // compiled filters - only rows with missing values go through the weka filters
+            double[][] values = new double[data.numInstances()][];
+            for (int i = 0; i < data.numInstances(); i++) {
+                Instance instance = data.instance(i);
+                if (canPreprocess(instance)) {
+                    values[i] = new double[m_numAttribs];
+                    preprocess(instance, values[i]);
+                } else {
+                    values[i] = filterInstance(instance);
+                }
+            }
+            return values;
+        }
+
+        Instances filtered = Filter.useFilter(data, m_replaceMissingFilter);
+        filtered = Filter.useFilter(filtered, m_nominalToBinFilter);
+        if (m_attributeFilter != null) {
+            filtered = Filter.useFilter(filtered, m_attributeFilter);
+        }
+        if (!m_center) {
+            filtered = Filter.useFilter(filtered, m_standardizeFilter);
+        } else {
+            filtered = Filter.useFilter(filtered, m_centerFilter);
+        }
+
+        double[][] values = new double[filtered.numInstances()][m_numAttribs];
+        for (int i = 0; i < filtered.numInstances(); i++) {
+            Instance inst = filtered.instance(i);
+            for (int j = 0; j < m_numAttribs; j++) {
+                values[i][j] = inst.value(j);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Blocked product with a transposed matrix: out[i][c] = rows[i] . b[c] for
+     * the first numB rows of b. Every dot product adds its terms in index
+     * order, like project.
+     *
+     * @param rows the left matrix
+     * @param b    the right matrix, transposed (one row per output column)
+     * @param numB the number of rows of b to use
+     * @param out  output, rows.length x at least numB
+     */
+    private static void multiplyTransposed(double[][] rows, double[][] b, int numB, double[][] out) {
+        for (int start = 0; start < rows.length; start += ROW_BLOCK) {
+            int end = Math.min(start + ROW_BLOCK, rows.length);
+            for (int c = 0; c < numB; c++) {
+                double[] column = b[c];
+                for (int i = start; i < end; i++) {
+                    double[] row = rows[i];
+                    double sum = 0.0;
+                    for (int j = 0; j < column.length; j++) {
+                        sum += (column[j] * row[j]);
+                    }
+                    out[i][c] = sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert component scores back to the original space: the first
+     * numComponents rows of the transposed eigenvectors weighted by the
+     * scores, scaled by the standard deviations (unless centering) and moved
+     * to the means
+     *
+     * @param scores        the component scores
+     * @param numComponents the number of components to use
+     * @param newVals       output - the first number of attributes values are
+     *                      written
+     */
+    private void backProject(double[] scores, int numComponents, double[] newVals) {
+        for (int i = 0; i < m_numAttribs; i++) {
+            newVals[i] = 0.0;
+        }
+        for (int c = 0; c < numComponents; c++) {
+            double score = scores[c];
+            double[] vector = m_eTranspose[c + 1];
+            for (int i = 0; i < m_numAttribs; i++) {
+                newVals[i] += (vector[i] * score);
+            }
+        }
+        for (int i = 0; i < m_numAttribs; i++) {
+            if (!m_center) {
+                newVals[i] *= m_stdDevs[i];
+            }
+            newVals[i] += m_means[i];
+        }
+    }
+
+    /**
+     * Project a filtered instance onto the first principal components
+     *
+     * @param filtered      the values after filterInstance
+     * @param scores        output - the score on component c is written to
+     *                      scores[c]
+     * @param numComponents the number of components to project onto
+     */
+    private void project(double[] filtered, double[] scores, int numComponents) {
+        for (int c = 0; c < numComponents; c++) {
+            double[] component = m_components[c];
             double tempval = 0.0;
             for (int j = 0; j < m_numAttribs; j++) {
-                tempval += (m_eigenvectors[j][m_sortedEigens[i]] * tempInst.value(j));
+                tempval += (component[j] * filtered[j]);
             }
-            newVals[m_numAttribs - i - 1] = tempval;
+            scores[c] = tempval;
+        }
+    }
+
+    /**
+     * The number of components a transformed instance keeps: components are
+     * added until they cover the requested variance, or until more than
+     * numPrinComponents have been added.
+     *
+     * @param numPrinComponents the limit set by setNumPrinComponents
+     * @return the number of components
+     */
+    public int numComponents(int numPrinComponents) {
+        double cumulative = 0;
+        int numAttAdded = 0;
+        int numComponents = 0;
+        for (int i = m_eigenvalues.length - 1; i >= 0; i--) {
+            numComponents++;
             cumulative += m_eigenvalues[m_sortedEigens[i]];
-            if ((cumulative / m_sumOfEigenValues) >= m_coverVariance) {
+            if (coversVariance(cumulative)) {
                 break;
             }
-            if (numAttAdded > m_maxNumAttr) {
+            if (numAttAdded > numPrinComponents) {
                 break;
             }
             numAttAdded++;
         }
+        return numComponents;
+    }
+
+    /**
+     * Whether the components up to a cumulative eigenvalue cover the variance
+     * to retain. Covering all of it (m_coverVariance 1) keeps every component:
+     * the last components of rank deficient data have eigenvalues at the
+     * rounding level, and where the cumulative proportion reaches 1 would
+     * depend on how the matrix was rounded.
+     *
+     * @param cumulative the sum of the eigenvalues of the components so far
+     * @return true if no more components are needed
+     */
+    private boolean coversVariance(double cumulative) {
+        return m_coverVariance < 1 && (cumulative / m_sumOfEigenValues) >= m_coverVariance;
+    }
 
+    /**
+     * Build the output instance from the transformed values, converted back to
+     * the original space if requested
+     *
+     * @param instance the instance the values were computed from
+     * @param newVals  the component scores (and class value)
+     * @return the transformed instance
+     * @throws Exception if something goes wrong
+     */
+    private Instance toOutput(Instance instance, double[] newVals) throws Exception {
         if (!m_transBackToOriginal) {
             if (instance instanceof SparseInstance) {
                 return new SparseInstance(instance.weight(), newVals);
@@ -1021,7 +2002,7 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
 
         double cumulative = 0.0;
         ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-        for (int i = m_numAttribs - 1; i >= 0; i--) {
+        for (int i = m_eigenvalues.length - 1; i >= 0; i--) {
             StringBuffer attName = new StringBuffer();
             // build array of coefficients
             double[] coeff_mags = new double[m_numAttribs];
@@ -1058,7 +2039,7 @@ public class PrincipalComponents extends UnsupervisedAttributeEvaluator implemen
             attributes.add(new Attribute(attName.toString()));
             cumulative += m_eigenvalues[m_sortedEigens[i]];
 
-            if ((cumulative / m_sumOfEigenValues) >= m_coverVariance) {
+            if (coversVariance(cumulative)) {
                 break;
             }
         }